@@ -0,0 +1,64 @@
+package org.server;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whole requests against a coordinator and five servers started inside the benchmark JVM and
+ * called over loopback, on each transport. Logs are disabled, so a PUT measures the 2PC
+ * round trips rather than fsync. Needs ports 10000 and 20001-20005 to be free.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dtwopc.wal.enabled=false"})
+@Threads(16)
+public class LoopbackBenchmark {
+
+  @Param({"rmi", "nio"})
+  public String transport;
+
+  private IServer server;
+
+  @Setup
+  public void setUp() throws Exception {
+    // Read once when the transport is first used, which has to be after this.
+    System.setProperty("twopc.transport", this.transport);
+    Coordinator.main(new String[] {"20001", "20002", "20003", "20004", "20005"});
+    this.server = new StubCache<>("LOCALHOST", "SERVER", IServer.class).get(20001);
+  }
+
+  @Benchmark
+  public String put() throws Exception {
+    return this.server.handleRequest(nextRequestID(), "PUT", nextKey(), "value");
+  }
+
+  @Benchmark
+  public String get() throws Exception {
+    return this.server.handleRequest(nextRequestID(), "GET", nextKey(), "");
+  }
+
+  private static String nextKey() {
+    return "key" + ThreadLocalRandom.current().nextInt(10000);
+  }
+
+  private static UUID nextRequestID() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    return new UUID(random.nextLong(), random.nextLong());
+  }
+}
@@ -0,0 +1,74 @@
+package org.server;
+
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A participant locking, applying and releasing single PUTs and DELETEs from several threads,
+ * over a handful of hot keys or a large key space. The log is not opened, so this measures
+ * the lock table and the store rather than the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class ParticipantBenchmark {
+
+  @Param({"16", "100000"})
+  public int keyCount;
+
+  private Server server;
+
+  @Setup
+  public void setUp() {
+    this.server = new Server(10001);
+  }
+
+  // Prepare and commit in a single call, as in a one-phase commit.
+  @Benchmark
+  public Vote put() {
+    return this.server.commitVote(nextRequestID(),
+        Collections.singletonList(new Operation("PUT", nextKey(), "value")));
+  }
+
+  @Benchmark
+  public Vote delete() {
+    return this.server.commitVote(nextRequestID(),
+        Collections.singletonList(new Operation("DELETE", nextKey(), null)));
+  }
+
+  // The separate prepare and commit calls of a two-phase round.
+  @Benchmark
+  public Vote prepareThenCommit() {
+    UUID requestID = nextRequestID();
+    this.server.prepareVote(requestID,
+        Collections.singletonList(new Operation("PUT", nextKey(), "value")));
+    return this.server.commitVote(requestID, Collections.emptyList());
+  }
+
+  private String nextKey() {
+    return "key" + ThreadLocalRandom.current().nextInt(this.keyCount);
+  }
+
+  private static UUID nextRequestID() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    return new UUID(random.nextLong(), random.nextLong());
+  }
+}
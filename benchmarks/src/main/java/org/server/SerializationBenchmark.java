@@ -0,0 +1,96 @@
+package org.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing and reading back the request and reply of one call, as RMI marshals them:
+ * the compact TransactionMessage, the same transaction through default serialization, and the
+ * legacy String arguments with their formatted reply.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+  @Param({"1", "16"})
+  public int operationCount;
+
+  private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(4096);
+  private final UUID requestID = UUID.randomUUID();
+  private List<Operation> operations;
+  private TransactionMessage message;
+  private TransactionResult result;
+  private String legacyReply;
+
+  @Setup
+  public void setUp() {
+    this.operations = new ArrayList<>();
+    List<String> results = new ArrayList<>();
+    for (int i = 0; i < this.operationCount; i++) {
+      this.operations.add(new Operation("PUT", "key" + i, "value-" + i));
+      results.add("previous-" + i);
+    }
+    this.message = new TransactionMessage(this.requestID, this.operations);
+    this.result = new TransactionResult(this.requestID, TransactionResult.Status.COMMITTED,
+        results);
+    this.legacyReply = Coordinator.describeOutcome(10000, this.requestID, this.result);
+  }
+
+  @Benchmark
+  public Object transactionMessage() throws IOException, ClassNotFoundException {
+    return roundTrip(this.message, this.result);
+  }
+
+  @Benchmark
+  public Object defaultSerialization() throws IOException, ClassNotFoundException {
+    return roundTrip(this.requestID, this.operations, this.result);
+  }
+
+  // Only meaningful for one operation, which is all the String API can carry.
+  @Benchmark
+  public Object legacyArguments() throws IOException, ClassNotFoundException {
+    Operation operation = this.operations.get(0);
+    return roundTrip(this.requestID, operation.getOperation(), operation.getKey(),
+        operation.getValue(), this.legacyReply);
+  }
+
+  private Object roundTrip(Object... objects) throws IOException, ClassNotFoundException {
+    this.buffer.reset();
+    try (ObjectOutputStream out = new ObjectOutputStream(this.buffer)) {
+      for (Object object : objects) {
+        out.writeObject(object);
+      }
+    }
+    Object last = null;
+    try (ObjectInputStream in = new ObjectInputStream(
+        new ByteArrayInputStream(this.buffer.toByteArray()))) {
+      for (int i = 0; i < objects.length; i++) {
+        last = in.readObject();
+      }
+    }
+    return last;
+  }
+
+}
@@ -0,0 +1,54 @@
+package org.server;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of counting the votes of one phase on the coordinator, without any remote calls.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VoteTrackerBenchmark {
+
+  private final List<Integer> ports = Arrays.asList(10001, 10002, 10003, 10004, 10005);
+  private final UUID requestID = new UUID(1, 1);
+  private Coordinator coordinator;
+
+  @Setup
+  public void setUp() {
+    this.coordinator = new Coordinator(10000);
+  }
+
+  // What handlePrepare does for a round once every participant has voted.
+  @Benchmark
+  public boolean preparePhase() throws InterruptedException {
+    VoteTracker tracker = new VoteTracker(this.requestID, VoteTracker.Phase.PREPARE, this.ports,
+        1, TimeUnit.MINUTES);
+    for (Integer port : this.ports) {
+      tracker.recordVote(port);
+    }
+    return tracker.awaitVotes(0, TimeUnit.MILLISECONDS) && tracker.isUnanimous();
+  }
+
+  // The callback a participant makes in callback mode.
+  @Benchmark
+  public void updatePreparationResponses() {
+    this.coordinator.updatePreparationResponses(10001, this.requestID);
+  }
+}
@@ -0,0 +1,138 @@
+package org.client;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.server.IServer;
+import org.server.Operation;
+import org.server.ScanCursor;
+import org.server.ScanPage;
+import org.server.StubCache;
+import org.server.TransactionResult;
+
+/**
+ * Programmatic client that keeps many requests in flight at once.
+ * Every request returns a CompletableFuture right away and runs on a pool of caller threads,
+ * at most maxOutstanding at a time; submitting beyond that blocks until a request completes.
+ * Requests that do not name a server are spread round-robin over the server ports.
+ */
+public class AsyncClient {
+
+  private static final int DEFAULT_MAX_OUTSTANDING =
+      Integer.getInteger("twopc.client.maxOutstanding", 64);
+
+  private final List<Integer> serverPorts;
+  private final StubCache<IServer> serverStubs =
+      new StubCache<>("LOCALHOST", "SERVER", IServer.class);
+  private final Semaphore outstandingRequests;
+  private final ExecutorService callers;
+  private final AtomicInteger nextServer = new AtomicInteger();
+
+  public AsyncClient(List<Integer> serverPorts) {
+    this(serverPorts, DEFAULT_MAX_OUTSTANDING);
+  }
+
+  public AsyncClient(List<Integer> serverPorts, int maxOutstanding) {
+    this.serverPorts = new ArrayList<>(serverPorts);
+    this.outstandingRequests = new Semaphore(maxOutstanding);
+    this.callers = Executors.newFixedThreadPool(maxOutstanding, (runnable) -> {
+      Thread thread = new Thread(runnable, "async-client");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  // Resolves every server once up front; the cache re-resolves a server only after it fails.
+  public void connect() throws RemoteException, NotBoundException {
+    for (Integer port : this.serverPorts) {
+      this.serverStubs.get(port);
+    }
+    this.serverStubs.startHealthChecks((stub) -> stub.getPortNumber());
+  }
+
+  public CompletableFuture<String> handleRequest(String operation, String key, String value) {
+    return handleRequest(nextServer(), operation, key, value);
+  }
+
+  public CompletableFuture<String> handleRequest(Integer port, String operation, String key,
+      String value) {
+    UUID requestID = UUID.randomUUID();
+    return submit(port,
+        (stub) -> stub.handleRequest(requestID, operation, key, value));
+  }
+
+  public CompletableFuture<TransactionResult> handleTransaction(List<Operation> operations) {
+    return handleTransaction(nextServer(), operations);
+  }
+
+  public CompletableFuture<TransactionResult> handleTransaction(Integer port,
+      List<Operation> operations) {
+    UUID requestID = UUID.randomUUID();
+    return submit(port, (stub) -> stub.handleTransaction(requestID, operations));
+  }
+
+  // Reads the keys as of the timestamp on any server, or as of its latest stable timestamp if
+  // the timestamp is 0; reading at the returned result's timestamp again sees the same values.
+  public CompletableFuture<TransactionResult> readSnapshot(List<Operation> reads, long timestamp) {
+    return readSnapshot(nextServer(), reads, timestamp);
+  }
+
+  public CompletableFuture<TransactionResult> readSnapshot(Integer port, List<Operation> reads,
+      long timestamp) {
+    UUID requestID = UUID.randomUUID();
+    return submit(port, (stub) -> stub.readSnapshot(requestID, reads, timestamp));
+  }
+
+  // Reads one page of a SCAN or PREFIX on any server; the page's cursor reads the next one.
+  public CompletableFuture<ScanPage> scan(ScanCursor cursor) {
+    return scan(nextServer(), cursor);
+  }
+
+  public CompletableFuture<ScanPage> scan(Integer port, ScanCursor cursor) {
+    UUID requestID = UUID.randomUUID();
+    return submit(port, (stub) -> stub.scan(requestID, cursor));
+  }
+
+  public void close() {
+    this.callers.shutdownNow();
+    this.serverStubs.shutdown();
+  }
+
+  private Integer nextServer() {
+    int next = this.nextServer.getAndIncrement() & Integer.MAX_VALUE;
+    return this.serverPorts.get(next % this.serverPorts.size());
+  }
+
+  private <R> CompletableFuture<R> submit(Integer port, StubCache.RemoteCall<IServer, R> call) {
+    CompletableFuture<R> result = new CompletableFuture<>();
+    try {
+      this.outstandingRequests.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      result.completeExceptionally(e);
+      return result;
+    }
+    try {
+      this.callers.execute(() -> {
+        try {
+          result.complete(this.serverStubs.call(port, call));
+        } catch (Throwable e) {
+          result.completeExceptionally(e);
+        } finally {
+          this.outstandingRequests.release();
+        }
+      });
+    } catch (RuntimeException e) {
+      this.outstandingRequests.release();
+      result.completeExceptionally(e);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,267 @@
+package org.client;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.server.LatencyHistogram;
+
+/**
+ * Workload driver behind java -jar Client.jar benchmark <port1> ... <port5>.
+ * Sends a random mix of PUT, GET and DELETE requests over a fixed key space, with keys picked
+ * uniformly or from a Zipf distribution, for a fixed duration, and reports throughput and
+ * latency percentiles per operation. In closed-loop mode each of concurrency threads sends its
+ * next request as soon as the previous one returns; in open-loop mode requests are started at a
+ * fixed rate whatever the latency, and each is timed from when it was due, so a stalled
+ * cluster shows up in the percentiles instead of lowering the rate.
+ * Configured through system properties, see README.md.
+ */
+class Benchmark {
+
+  private static final String[] OPERATIONS = {"PUT", "GET", "DELETE"};
+
+  private final List<Integer> serverPorts;
+  private final int[] mix;
+  private final int keyCount;
+  private final double zipfSkew;
+  private final int valueBytes;
+  private final int concurrency;
+  private final long durationNanos;
+  private final double requestsPerSecond;
+  private final String csvPath;
+
+  private final Map<String, LatencyHistogram> latencies = new LinkedHashMap<>();
+  private final Map<String, LongAdder> errors = new LinkedHashMap<>();
+  private final ZipfGenerator zipf;
+  private final String[] values = new String[16];
+
+  Benchmark(List<Integer> serverPorts) {
+    this.serverPorts = serverPorts;
+    this.mix = parseMix(System.getProperty("twopc.bench.mix", "put:20,get:75,delete:5"));
+    this.keyCount = Integer.getInteger("twopc.bench.keys", 10000);
+    this.zipfSkew = Double.parseDouble(System.getProperty("twopc.bench.zipf", "0.99"));
+    this.valueBytes = Integer.getInteger("twopc.bench.valueBytes", 100);
+    this.concurrency = Integer.getInteger("twopc.bench.concurrency", 64);
+    this.durationNanos = TimeUnit.SECONDS.toNanos(Long.getLong("twopc.bench.durationSeconds", 30L));
+    this.requestsPerSecond = Double.parseDouble(System.getProperty("twopc.bench.rate", "0"));
+    this.csvPath = System.getProperty("twopc.bench.csv");
+    if (this.zipfSkew < 0 || this.zipfSkew >= 1) {
+      throw new IllegalArgumentException("twopc.bench.zipf must be in [0, 1)");
+    }
+    this.zipf = this.zipfSkew > 0 ? new ZipfGenerator(this.keyCount, this.zipfSkew) : null;
+    for (String operation : OPERATIONS) {
+      this.latencies.put(operation, new LatencyHistogram());
+      this.errors.put(operation, new LongAdder());
+    }
+    Random random = new Random(42);
+    for (int i = 0; i < this.values.length; i++) {
+      StringBuilder value = new StringBuilder(this.valueBytes);
+      for (int j = 0; j < this.valueBytes; j++) {
+        value.append((char) ('a' + random.nextInt(26)));
+      }
+      this.values[i] = value.toString();
+    }
+  }
+
+  void run() throws Exception {
+    AsyncClient client = new AsyncClient(this.serverPorts, this.concurrency);
+    client.connect();
+    System.out.println(String.format(
+        "Benchmark: %s loop, mix %s/%s/%s (PUT/GET/DELETE), %s keys, zipf %s, %s byte values, "
+            + "concurrency %s, %s s%s",
+        this.requestsPerSecond > 0 ? "open" : "closed", this.mix[0], this.mix[1], this.mix[2],
+        this.keyCount, this.zipfSkew, this.valueBytes, this.concurrency,
+        TimeUnit.NANOSECONDS.toSeconds(this.durationNanos),
+        this.requestsPerSecond > 0 ? String.format(", %s requests/s", this.requestsPerSecond)
+            : ""));
+    long startTime = System.nanoTime();
+    if (this.requestsPerSecond > 0) {
+      runOpenLoop(client, startTime);
+    } else {
+      runClosedLoop(client, startTime);
+    }
+    long elapsedNanos = System.nanoTime() - startTime;
+    client.close();
+    report(elapsedNanos);
+  }
+
+  private void runClosedLoop(AsyncClient client, long startTime) throws InterruptedException {
+    List<Thread> drivers = new ArrayList<>(this.concurrency);
+    for (int i = 0; i < this.concurrency; i++) {
+      Thread driver = new Thread(() -> {
+        while (System.nanoTime() - startTime < this.durationNanos) {
+          String operation = nextOperation();
+          long sentAt = System.nanoTime();
+          try {
+            String response = send(client, operation).get();
+            record(operation, sentAt, response);
+          } catch (Exception e) {
+            this.errors.get(operation).increment();
+          }
+        }
+      }, "benchmark-driver-" + i);
+      drivers.add(driver);
+      driver.start();
+    }
+    for (Thread driver : drivers) {
+      driver.join();
+    }
+  }
+
+  private void runOpenLoop(AsyncClient client, long startTime) {
+    long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / this.requestsPerSecond);
+    List<CompletableFuture<?>> inFlight = new ArrayList<>();
+    for (long dueAt = startTime; dueAt - startTime < this.durationNanos; dueAt += intervalNanos) {
+      long wait = dueAt - System.nanoTime();
+      if (wait > 0) {
+        LockSupport.parkNanos(wait);
+      }
+      String operation = nextOperation();
+      long intendedStart = dueAt;
+      // Blocks while concurrency requests are outstanding; the wait counts toward latency.
+      inFlight.add(send(client, operation).whenComplete((response, failure) -> {
+        if (failure != null) {
+          this.errors.get(operation).increment();
+        } else {
+          record(operation, intendedStart, response);
+        }
+      }));
+      if (inFlight.size() >= 4096) {
+        inFlight.removeIf(CompletableFuture::isDone);
+      }
+    }
+    CompletableFuture.allOf(inFlight.toArray(new CompletableFuture<?>[0]))
+        .exceptionally((failure) -> null).join();
+  }
+
+  private CompletableFuture<String> send(AsyncClient client, String operation) {
+    String key = "key" + nextKey();
+    String value = operation.equals("PUT")
+        ? this.values[ThreadLocalRandom.current().nextInt(this.values.length)]
+        : "";
+    return client.handleRequest(operation, key, value);
+  }
+
+  // Writes that did not commit count as errors; a GET of a missing key is still a success.
+  private void record(String operation, long startTime, String response) {
+    if (!operation.equals("GET") && !response.contains("all servers committed")) {
+      this.errors.get(operation).increment();
+      return;
+    }
+    this.latencies.get(operation).record(System.nanoTime() - startTime);
+  }
+
+  private String nextOperation() {
+    int draw = ThreadLocalRandom.current().nextInt(this.mix[0] + this.mix[1] + this.mix[2]);
+    return draw < this.mix[0] ? "PUT" : draw < this.mix[0] + this.mix[1] ? "GET" : "DELETE";
+  }
+
+  private long nextKey() {
+    return this.zipf != null
+        ? this.zipf.next()
+        : ThreadLocalRandom.current().nextInt(this.keyCount);
+  }
+
+  private void report(long elapsedNanos) throws IOException {
+    double elapsedSeconds = elapsedNanos / 1e9;
+    List<String> rows = new ArrayList<>();
+    rows.add("operation,count,errors,throughput_per_s,p50_us,p99_us,p999_us,max_us");
+    long total = 0;
+    System.out.println(String.format("%-8s %10s %8s %12s %10s %10s %10s %10s",
+        "op", "count", "errors", "ops/s", "p50 us", "p99 us", "p999 us", "max us"));
+    for (String operation : OPERATIONS) {
+      LatencyHistogram histogram = this.latencies.get(operation);
+      long count = histogram.getCount();
+      total += count;
+      Object[] row = {operation, count, this.errors.get(operation).sum(),
+          String.format("%.1f", count / elapsedSeconds),
+          micros(histogram.getPercentile(50)), micros(histogram.getPercentile(99)),
+          micros(histogram.getPercentile(99.9)), micros(histogram.getMax())};
+      System.out.println(String.format("%-8s %10s %8s %12s %10s %10s %10s %10s", row));
+      rows.add(String.format("%s,%s,%s,%s,%s,%s,%s,%s", row));
+    }
+    System.out.println(String.format("Total %s requests in %.1f s, %.1f requests/s.",
+        total, elapsedSeconds, total / elapsedSeconds));
+    if (this.csvPath != null) {
+      try (PrintWriter csv = new PrintWriter(
+          Files.newBufferedWriter(Paths.get(this.csvPath), StandardCharsets.UTF_8))) {
+        rows.forEach(csv::println);
+      }
+      System.out.println("Wrote " + this.csvPath);
+    }
+  }
+
+  private static long micros(long nanos) {
+    return TimeUnit.NANOSECONDS.toMicros(nanos);
+  }
+
+  // Weights of PUT, GET and DELETE from e.g. "put:20,get:75,delete:5".
+  private static int[] parseMix(String mix) {
+    int[] weights = new int[OPERATIONS.length];
+    for (String part : mix.split(",")) {
+      String[] nameAndWeight = part.trim().split(":");
+      for (int i = 0; i < OPERATIONS.length; i++) {
+        if (OPERATIONS[i].equalsIgnoreCase(nameAndWeight[0].trim())) {
+          weights[i] = Integer.parseInt(nameAndWeight[1].trim());
+        }
+      }
+    }
+    if (weights[0] + weights[1] + weights[2] <= 0) {
+      throw new IllegalArgumentException("twopc.bench.mix has no positive weight: " + mix);
+    }
+    return weights;
+  }
+
+  /**
+   * Draws ranks in [0, n) where rank i is picked with probability proportional to
+   * 1 / (i + 1)^skew, using the constant-time method of Gray et al. that YCSB uses.
+   * Rank 0 is the hottest key.
+   */
+  static class ZipfGenerator {
+    private final long n;
+    private final double skew;
+    private final double zetaN;
+    private final double alpha;
+    private final double eta;
+
+    ZipfGenerator(long n, double skew) {
+      this.n = n;
+      this.skew = skew;
+      this.zetaN = zeta(n, skew);
+      this.alpha = 1.0 / (1.0 - skew);
+      this.eta = (1 - Math.pow(2.0 / n, 1 - skew)) / (1 - zeta(2, skew) / this.zetaN);
+    }
+
+    long next() {
+      double u = ThreadLocalRandom.current().nextDouble();
+      double uz = u * this.zetaN;
+      if (uz < 1.0) {
+        return 0;
+      }
+      if (uz < 1.0 + Math.pow(0.5, this.skew)) {
+        return 1;
+      }
+      long rank = (long) (this.n * Math.pow(this.eta * u - this.eta + 1, this.alpha));
+      return Math.min(rank, this.n - 1);
+    }
+
+    private static double zeta(long n, double skew) {
+      double sum = 0;
+      for (long i = 1; i <= n; i++) {
+        sum += 1.0 / Math.pow(i, skew);
+      }
+      return sum;
+    }
+  }
+}
@@ -2,17 +2,16 @@ package org.client;
 
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Scanner;
-import org.server.IServer;
-import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.server.ScanCursor;
+import org.server.ScanPage;
 
 /**
  * To Build the Client, use maven.
@@ -21,12 +20,15 @@ import java.util.UUID;
  * When starting the program, make sure to run the Coordinator.jar first.
  * After the Coordinator.jar is running, next to run the Client, find the Client.jar in target.
  * Run java -jar Client.jar <port1 num> <port2 num> ... <port5 num>
+ * To measure the cluster instead, run java -jar Client.jar benchmark <port1 num> ... <port5 num>
  */
 public class Client implements IClient {
 
+  // How many keys each page of a SCAN or PREFIX asks for.
+  private static final int SCAN_PAGE_SIZE = Integer.getInteger("twopc.scan.pageSize", 100);
+
   private List<Integer> serverPorts = new ArrayList<>();
-  private Map<Integer, IServer> serverStubs = new HashMap<>();
-  private Map<Integer, Registry> serverRegistries = new HashMap<>();
+  private AsyncClient asyncClient = null;
 
 
   private final String programCommandLineExpression =
@@ -39,11 +41,25 @@ public class Client implements IClient {
   public static void main(String args[]) {
     boolean hasPrefilled = false;
     Client newClient = new Client();
+    if (args.length > 0 && args[0].equalsIgnoreCase("BENCHMARK")) {
+      String[] portArgs = Arrays.copyOfRange(args, 1, args.length);
+      if (newClient.canParseProgramArgs(portArgs)) {
+        try {
+          new Benchmark(newClient.serverPorts).run();
+          System.exit(0);
+        } catch (Exception e) {
+          System.err.println("\nBenchmark exception: " + e.toString());
+          e.printStackTrace();
+          System.exit(1);
+        }
+      }
+      return;
+    }
     if (newClient.canParseProgramArgs(args)) {
       try {
         String userInput = "";
+        newClient.setUpServerStubsAndRegistries();
         do {
-          newClient.setUpServerStubsAndRegistries();
           if (!hasPrefilled) {
             hasPrefilled = true;
             newClient.prefillServerStore(newClient.serverPorts.get(0));
@@ -52,14 +68,17 @@ public class Client implements IClient {
           if (newClient.canParseUserInput(userInput)) {
             String[] inputStrings = newClient.parseUserInput(userInput);
             Integer serverNumber = Integer.parseInt(inputStrings[0]);
-            String response = newClient.serverStubs.get(serverNumber)
-                .handleRequest
-                    (
-                        UUID.randomUUID(),
-                        inputStrings[1],
-                        inputStrings[2],
-                        inputStrings.length == 4 ? inputStrings[3] : ""
-                    );
+            if (newClient.isScan(inputStrings[1])) {
+              newClient.printScan(serverNumber, inputStrings);
+              continue;
+            }
+            String response = newClient.asyncClient.handleRequest
+                (
+                    serverNumber,
+                    inputStrings[1],
+                    inputStrings[2],
+                    inputStrings.length == 4 ? inputStrings[3] : ""
+                ).get();
             System.out.println("\nresponse: " + response);
           }
         } while (!userInput.toUpperCase().contains("EXIT"));
@@ -81,6 +100,8 @@ public class Client implements IClient {
         + "    1) <SERVER No.> PUT <KEY> <VALUE> \n"
         + "    2) <SERVER No.> GET <KEY> \n"
         + "    3) <SERVER No.> DELETE <KEY> \n"
+        + "    4) <SERVER No.> SCAN <FROM KEY> [<TO KEY>] \n"
+        + "    5) <SERVER No.> PREFIX <KEY PREFIX> \n"
         + "Note that you can quit the program by typing the word 'EXIT'. \n"
     );
     Scanner input = new Scanner(System.in);
@@ -115,10 +136,16 @@ public class Client implements IClient {
         if (userInputStrings[1].trim().equalsIgnoreCase("DELETE")) {
           return true;
         }
+        if (isScan(userInputStrings[1].trim())) {
+          return true;
+        }
       } else if (userInput.split(" ").length == 4) {
         if (userInputStrings[1].trim().equalsIgnoreCase("PUT")) {
           return true;
         }
+        if (userInputStrings[1].trim().equalsIgnoreCase("SCAN")) {
+          return true;
+        }
       }
     }
     if (canParse == false) {
@@ -129,6 +156,34 @@ public class Client implements IClient {
   }
 
 
+  private boolean isScan(String operation) {
+    return operation.equalsIgnoreCase("SCAN") || operation.equalsIgnoreCase("PREFIX");
+  }
+
+  // Prints the keys as the pages arrive, one call per page, all read at the same snapshot.
+  private void printScan(Integer port, String[] inputStrings) throws Exception {
+    ScanCursor cursor = inputStrings[1].equalsIgnoreCase("PREFIX")
+        ? ScanCursor.prefix(inputStrings[2], SCAN_PAGE_SIZE)
+        : ScanCursor.range(inputStrings[2], inputStrings.length == 4 ? inputStrings[3] : null,
+            SCAN_PAGE_SIZE);
+    int keys = 0;
+    while (cursor != null) {
+      ScanPage page;
+      try {
+        page = this.asyncClient.scan(port, cursor).get();
+      } catch (ExecutionException e) {
+        // The snapshot may have been collected while the pages were printed.
+        System.out.println(String.format("\nresponse: scan stopped after %s keys: %s", keys,
+            e.getCause()));
+        return;
+      }
+      page.getEntries().forEach((key, value) -> System.out.println(key + " " + value));
+      keys += page.getEntries().size();
+      cursor = page.getNext();
+    }
+    System.out.println(String.format("\nresponse: %s keys found.", keys));
+  }
+
   private boolean canParseProgramArgs(String[] args) {
     System.out.println(
         String.format("Client Program starting... Received %s arguments.", args.length));
@@ -157,78 +212,42 @@ public class Client implements IClient {
     return true;
   }
 
+  // Resolves every server once up front; the cache re-resolves a server only after it fails.
   private void setUpServerStubsAndRegistries() throws NotBoundException, RemoteException {
-    this.serverPorts
-        .stream()
-        .forEach((portNumber) -> {
-          IServer server;
-          Registry registry;
-          try {
-            registry = LocateRegistry.getRegistry("LOCALHOST", portNumber);
-            server = (IServer) registry.lookup("SERVER");
-          } catch (RemoteException | NotBoundException e) {
-            System.err.println("\n" + String.format(
-                "Client is unable to create a registry for server at port number: %s", portNumber));
-            throw new RuntimeException(e);
-          }
-          this.serverStubs.put(portNumber, server);
-          this.serverRegistries.put(portNumber, registry);
-        });
-
+    this.asyncClient = new AsyncClient(this.serverPorts);
+    try {
+      this.asyncClient.connect();
+    } catch (RemoteException | NotBoundException e) {
+      System.err.println("\n" + "Client is unable to reach the servers at " + this.serverPorts);
+      throw e;
+    }
   }
 
 
-  private void prefillServerStore(Integer port) throws NotBoundException, RemoteException {
+  // Each group of requests is sent at once, and the next group starts when all have completed.
+  private void prefillServerStore(Integer port) {
+    String[][] fruits = {
+        {"APPLE", "$1"}, {"ORANGE", "$2"}, {"BANANA", "$5"}, {"KIWI", "$9"}, {"WATERMELON", "$3"}
+    };
     System.out.println("\nTransacting initial 5 PUTS");
-    this.serverStubs.get(port)
-        .handleRequest(UUID.randomUUID(), "PUT", "APPLE", "$1");
-    this.serverStubs.get(port)
-        .handleRequest(UUID.randomUUID(), "PUT", "ORANGE", "$2");
-    this.serverStubs.get(port)
-        .handleRequest(UUID.randomUUID(), "PUT", "BANANA", "$5");
-    this.serverStubs.get(port)
-        .handleRequest(UUID.randomUUID(), "PUT", "KIWI", "$9");
-    this.serverStubs.get(port)
-        .handleRequest(UUID.randomUUID(), "PUT", "WATERMELON", "$3");
+    sendToAll(port, "PUT", fruits);
     System.out.println("\nTransacting initial 5 GETS");
-    this.serverStubs.get(port)
-        .handleRequest(UUID.randomUUID(), "GET", "APPLE", "");
-    this.serverStubs.get(port)
-        .handleRequest(UUID.randomUUID(), "GET", "ORANGE", "");
-    this.serverStubs.get(port)
-        .handleRequest(UUID.randomUUID(), "GET", "BANANA", "");
-    this.serverStubs.get(port)
-        .handleRequest(UUID.randomUUID(), "GET", "KIWI", "");
-    this.serverStubs.get(port)
-        .handleRequest(UUID.randomUUID(), "GET", "WATERMELON", "");
+    sendToAll(port, "GET", fruits);
     System.out.println("\nTransacting initial 5 DELETES");
-    this.serverStubs.get(port)
-        .handleRequest(UUID.randomUUID(), "DELETE", "APPLE", "");
-    this.serverStubs.get(port)
-        .handleRequest(UUID.randomUUID(), "DELETE", "ORANGE", "");
-    this.serverStubs.get(port)
-        .handleRequest(UUID.randomUUID(), "DELETE", "BANANA", "");
-    this.serverStubs.get(port)
-        .handleRequest(UUID.randomUUID(), "DELETE", "KIWI", "");
-    this.serverStubs.get(port)
-        .handleRequest(UUID.randomUUID(), "DELETE", "WATERMELON", "");
+    sendToAll(port, "DELETE", fruits);
     System.out.println("\nTransacting an extra 5 PUTS for testing");
-    this.serverStubs.get(port)
-        .handleRequest(UUID.randomUUID(), "PUT", "APPLE", "$1");
-    System.out.println("10001 PUT APPLE $1");
-    this.serverStubs.get(port)
-        .handleRequest(UUID.randomUUID(), "PUT", "ORANGE", "$2");
-    System.out.println("10001 PUT ORANGE $2");
-    this.serverStubs.get(port)
-        .handleRequest(UUID.randomUUID(), "PUT", "BANANA", "$5");
-    System.out.println("10001 PUT BANANA $5");
-    this.serverStubs.get(port)
-        .handleRequest(UUID.randomUUID(), "PUT", "KIWI", "$9");
-    System.out.println("10001 PUT KIWI $9");
-    this.serverStubs.get(port)
-        .handleRequest(UUID.randomUUID(), "PUT", "WATERMELON", "$3");
-    System.out.println("10001 PUT WATERMELON $3");
+    sendToAll(port, "PUT", fruits);
+    for (String[] fruit : fruits) {
+      System.out.println(String.format("%s PUT %s %s", port, fruit[0], fruit[1]));
+    }
   }
-}
-
 
+  private void sendToAll(Integer port, String operation, String[][] keyValues) {
+    List<CompletableFuture<String>> responses = new ArrayList<>();
+    for (String[] keyValue : keyValues) {
+      responses.add(this.asyncClient.handleRequest(port, operation, keyValue[0],
+          operation.equals("PUT") ? keyValue[1] : ""));
+    }
+    CompletableFuture.allOf(responses.toArray(new CompletableFuture<?>[0])).join();
+  }
+}
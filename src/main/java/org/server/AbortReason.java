@@ -0,0 +1,24 @@
+package org.server;
+
+/**
+ * Why a transaction did not commit, reported per participant in a Vote and collected into the
+ * TransactionResult the client receives.
+ */
+public enum AbortReason {
+  // Reported by a participant.
+  INVALID_OPERATION,
+  LOCK_TIMEOUT,
+  LOG_FAILURE,
+  ALREADY_ABORTED,
+  READ_FAILURE,
+  APPLY_FAILURE,
+  // A participant voted no through the callback protocol, which does not say why.
+  VOTED_NO,
+  // Decided by the coordinator.
+  UNREACHABLE,
+  TIMEOUT,
+  OVERLOADED,
+  // The keys of the request are spread over more servers than one round can track.
+  TOO_MANY_PARTICIPANTS,
+  DECISION_LOG_FAILURE
+}
@@ -0,0 +1,281 @@
+package org.server;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Anti-entropy repair between the replicas of a server's keys. For every other server there is
+ * a MerkleTree over the keys both of them hold, kept up to date by every change to the store.
+ * Each server periodically compares its trees with the servers on higher ports from the root
+ * down, asking only for the children of nodes that differ. It then trades key digests for the
+ * leaf ranges that differ, and only the keys whose versions differ are copied, each way, with
+ * the newer version winning. Repair traffic follows the divergence instead of the store size,
+ * and so does the work: the keys of each leaf range are indexed next to the trees, so only the
+ * keys of the ranges that differ are read. Whoever created the AntiEntropy is handed the
+ * versions each batch installed, so it can log them.
+ * Tombstones are collected after the MVCC retention window, so replicas must repair more often
+ * than that, or a delete one of them missed can come back.
+ */
+class AntiEntropy {
+
+  static final long INTERVAL_MILLIS = Long.getLong("twopc.antiEntropy.intervalMillis", 5000L);
+  static final int TREE_DEPTH = Integer.getInteger("twopc.antiEntropy.treeDepth", 10);
+
+  // The ring and the trees built for it, replaced together when the servers change.
+  private static final class Replicas {
+    private final HashRing ring;
+    private final Map<Integer, MerkleTree> trees;
+    // The keys this server replicates, by leaf: every tree splits the key hashes alike.
+    private final List<Set<String>> leafKeys = new ArrayList<>(1 << TREE_DEPTH);
+
+    Replicas(HashRing ring, Map<Integer, MerkleTree> trees) {
+      this.ring = ring;
+      this.trees = trees;
+      for (int i = 0; i < 1 << TREE_DEPTH; i++) {
+        this.leafKeys.add(ConcurrentHashMap.newKeySet());
+      }
+    }
+
+    // The keys of a leaf node, see MerkleTree.leafOf.
+    Set<String> keysOf(int leaf) {
+      return this.leafKeys.get(leaf - this.leafKeys.size());
+    }
+
+    Set<String> keysAt(long keyHash) {
+      return this.leafKeys.get((int) (keyHash >>> (Long.SIZE - TREE_DEPTH)));
+    }
+  }
+
+  private final Integer myPortNumber;
+  private final KeyValueStore store;
+  private final StubCache<IParticipant> peers;
+  private final Consumer<List<KeyVersion>> repaired;
+  private volatile Replicas replicas = null;
+  private Thread repairer = null;
+
+  private final LongAdder keysRepaired;
+  private final LongAdder keysSent;
+  private final LongAdder divergentRanges;
+
+  AntiEntropy(Integer myPortNumber, KeyValueStore store, StubCache<IParticipant> peers,
+      Metrics metrics, Consumer<List<KeyVersion>> repaired) {
+    this.myPortNumber = myPortNumber;
+    this.store = store;
+    this.peers = peers;
+    this.repaired = repaired;
+    this.keysRepaired = metrics.counter("antiEntropy.keysRepaired");
+    this.keysSent = metrics.counter("antiEntropy.keysSent");
+    this.divergentRanges = metrics.counter("antiEntropy.divergentRanges");
+    store.addHeadListener(this::headChanged);
+  }
+
+  /**
+   * Builds the trees for the new placement from the store and starts repairing. Called before
+   * the servers take transactions, so no commit is missed while the trees are built.
+   */
+  synchronized void setRing(HashRing ring, Set<Integer> otherServers) {
+    Map<Integer, MerkleTree> trees = new HashMap<>();
+    for (Integer peer : otherServers) {
+      trees.put(peer, new MerkleTree(TREE_DEPTH));
+    }
+    Replicas built = new Replicas(ring, trees);
+    for (KeyVersion version : this.store.heads((key) -> true)) {
+      addTo(built, version.getKey(), 0, version.digest());
+    }
+    this.replicas = built;
+    if (this.repairer == null && INTERVAL_MILLIS > 0) {
+      this.repairer = new Thread(this::repairPeriodically, "anti-entropy-" + this.myPortNumber);
+      this.repairer.setDaemon(true);
+      this.repairer.start();
+    }
+  }
+
+  private void headChanged(String key, long oldDigest, long newDigest) {
+    Replicas current = this.replicas;
+    if (current != null) {
+      addTo(current, key, oldDigest, newDigest);
+    }
+  }
+
+  // Updates the tree of every other replica of the key and the key index, if this server is one.
+  private void addTo(Replicas replicas, String key, long oldDigest, long newDigest) {
+    List<Integer> owners = replicas.ring.ownersOf(key);
+    if (!owners.contains(this.myPortNumber)) {
+      return;
+    }
+    long keyHash = HashRing.hash(key);
+    for (Integer owner : owners) {
+      MerkleTree tree = replicas.trees.get(owner);
+      if (tree != null) {
+        tree.update(keyHash, oldDigest, newDigest);
+      }
+    }
+    Set<String> keys = replicas.keysAt(keyHash);
+    if (newDigest != 0) {
+      keys.add(key);
+    } else if (this.store.headOf(key) == null) {
+      // Listeners of a drop and a new write may run in either order, so the store decides.
+      keys.remove(key);
+    }
+  }
+
+  private void repairPeriodically() {
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        Thread.sleep(INTERVAL_MILLIS);
+      } catch (InterruptedException e) {
+        return;
+      }
+      Replicas current = this.replicas;
+      for (Integer peer : current.trees.keySet()) {
+        // Each pair of servers is repaired once, by the one on the lower port.
+        if (peer > this.myPortNumber) {
+          try {
+            repairWith(peer);
+          } catch (RemoteException | NotBoundException e) {
+            // The peer is down; it is repaired once it is back.
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Brings the keys this server shares with the peer in line with it. Returns the number of keys
+   * that differed.
+   */
+  int repairWith(Integer peer) throws RemoteException, NotBoundException {
+    Replicas current = this.replicas;
+    MerkleTree tree = current == null ? null : current.trees.get(peer);
+    if (tree == null) {
+      return 0;
+    }
+    BitSet leaves = new BitSet();
+    int[] nodes = {MerkleTree.ROOT};
+    while (nodes.length > 0) {
+      int[] asked = nodes;
+      long[] theirs = this.peers.call(peer,
+          (participant) -> participant.getMerkleHashes(this.myPortNumber, asked));
+      List<Integer> children = new ArrayList<>();
+      for (int i = 0; i < asked.length; i++) {
+        if (tree.hashOf(asked[i]) == theirs[i]) {
+          continue;
+        }
+        if (tree.isLeaf(asked[i])) {
+          leaves.set(asked[i]);
+        } else {
+          children.add(2 * asked[i]);
+          children.add(2 * asked[i] + 1);
+        }
+      }
+      nodes = children.stream().mapToInt(Integer::intValue).toArray();
+    }
+    if (leaves.isEmpty()) {
+      return 0;
+    }
+    this.divergentRanges.add(leaves.cardinality());
+    Map<String, KeyVersion> mine = versionsIn(current, peer, leaves);
+    Map<String, Long> digests = new HashMap<>();
+    mine.forEach((key, version) -> digests.put(key, version.digest()));
+    List<KeyVersion> theirs = this.peers.call(peer, (participant) ->
+        participant.compareRanges(this.myPortNumber, leaves.stream().toArray(), digests));
+    List<KeyVersion> newer = new ArrayList<>();
+    List<KeyVersion> older = new ArrayList<>();
+    for (KeyVersion version : theirs) {
+      KeyVersion own = mine.get(version.getKey());
+      if (version.isPresent() && (own == null || version.beats(own))) {
+        older.add(version);
+      } else if (own != null && !version.beats(own)) {
+        newer.add(own);
+      }
+    }
+    applyVersions(older);
+    if (!newer.isEmpty()) {
+      this.peers.call(peer, (participant) -> {
+        participant.applyVersions(newer);
+        return null;
+      });
+      this.keysSent.add(newer.size());
+    }
+    return theirs.size();
+  }
+
+  // The hashes of the nodes of the tree this server keeps for the peer.
+  long[] getMerkleHashes(Integer peer, int[] nodes) {
+    Replicas current = this.replicas;
+    MerkleTree tree = current == null ? null : current.trees.get(peer);
+    long[] hashes = new long[nodes.length];
+    for (int i = 0; i < nodes.length; i++) {
+      hashes[i] = tree == null ? 0 : tree.hashOf(nodes[i]);
+    }
+    return hashes;
+  }
+
+  // The versions here of every key in the leaf ranges whose digest differs from the peer's,
+  // absent ones included.
+  List<KeyVersion> compareRanges(Integer peer, int[] leaves, Map<String, Long> digests) {
+    Replicas current = this.replicas;
+    MerkleTree tree = current == null ? null : current.trees.get(peer);
+    if (tree == null) {
+      return Collections.emptyList();
+    }
+    BitSet leafSet = new BitSet();
+    for (int leaf : leaves) {
+      leafSet.set(leaf);
+    }
+    Map<String, KeyVersion> mine = versionsIn(current, peer, leafSet);
+    List<KeyVersion> divergent = new ArrayList<>();
+    mine.forEach((key, version) -> {
+      Long digest = digests.get(key);
+      if (digest == null || digest != version.digest()) {
+        divergent.add(version);
+      }
+    });
+    digests.keySet().forEach((key) -> {
+      if (!mine.containsKey(key)) {
+        divergent.add(KeyVersion.absent(key));
+      }
+    });
+    return divergent;
+  }
+
+  void applyVersions(List<KeyVersion> versions) {
+    List<KeyVersion> applied = new ArrayList<>();
+    for (KeyVersion version : versions) {
+      if (this.store.repair(version)) {
+        applied.add(version);
+      }
+    }
+    if (!applied.isEmpty()) {
+      this.keysRepaired.add(applied.size());
+      this.repaired.accept(applied);
+    }
+  }
+
+  // The newest versions of the keys in the leaf ranges that the peer replicates too.
+  private Map<String, KeyVersion> versionsIn(Replicas current, Integer peer, BitSet leaves) {
+    Map<String, KeyVersion> versions = new HashMap<>();
+    leaves.stream().forEach((leaf) -> {
+      for (String key : current.keysOf(leaf)) {
+        if (!current.ring.ownersOf(key).contains(peer)) {
+          continue;
+        }
+        KeyVersion version = this.store.headOf(key);
+        if (version != null) {
+          versions.put(key, version);
+        }
+      }
+    });
+    return versions;
+  }
+}
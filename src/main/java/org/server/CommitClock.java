@@ -0,0 +1,38 @@
+package org.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Source of commit timestamps: microseconds since the epoch, bumped by one whenever the wall
+ * clock has not moved on, so every timestamp it hands out is larger than the last one and than
+ * every timestamp it has observed from another process.
+ */
+class CommitClock {
+
+  private final AtomicLong last = new AtomicLong();
+
+  long next() {
+    while (true) {
+      long previous = this.last.get();
+      long next = Math.max(System.currentTimeMillis() * 1000, previous + 1);
+      if (this.last.compareAndSet(previous, next)) {
+        return next;
+      }
+    }
+  }
+
+  // A timestamp later than every one handed out or observed, and no earlier than the given one.
+  long nextAtLeast(long timestamp) {
+    return this.last.accumulateAndGet(timestamp,
+        (previous, lowest) -> Math.max(previous + 1, lowest));
+  }
+
+  void observe(long timestamp) {
+    this.last.accumulateAndGet(timestamp, Math::max);
+  }
+
+  // The last timestamp handed out or observed.
+  long current() {
+    return this.last.get();
+  }
+}
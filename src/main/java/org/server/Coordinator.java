@@ -1,22 +1,28 @@
 package org.server;
 
-import java.rmi.AlreadyBoundException;
+import java.io.IOException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
-import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Date;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
 
 /**
  * To Build the Coordinator, use maven.
@@ -32,13 +38,69 @@ public class Coordinator extends Server implements ICoordinator {
       "\njava -jar Coordinator.jar <port1> <port2> ... <port5>" ;
 
   private List<Integer> serverPorts = new ArrayList<>();
-  private Map<Integer, IServer> serverStubs = new HashMap<>();
+  private Map<Integer, IParticipant> serverStubs = new HashMap<>();
+  // RMI only holds exported objects weakly, so keep the servers reachable from here.
+  private Map<Integer, Server> servers = new HashMap<>();
 
-  ConcurrentHashMap<Integer, List<UUID>> serverPreparationResponses = new ConcurrentHashMap<>();
-  ConcurrentHashMap<Integer, List<UUID>> serverCommitResponses = new ConcurrentHashMap<>();
+  // In-flight transactions, completed directly by the update*Responses callbacks.
+  private final TransactionTable transactions = new TransactionTable(
+      Integer.getInteger("twopc.transactionTable.maxEntries", 65536));
+
+  // How long a participant gets to answer a phase follows its own recent round trips, so one
+  // degraded server fails the rounds it is in quickly instead of after a fixed minute.
+  private final ParticipantTimeouts prepareTimeouts = new ParticipantTimeouts();
+  private final ParticipantTimeouts commitTimeouts = new ParticipantTimeouts();
+  // Age after which a commit still in the decision log is re-driven.
+  private static final long PHASE_TIMEOUT_MILLIS = 60 * 1000L;
+
+  // Commit timestamps handed out whose commit not every participant has applied yet; the stable
+  // timestamp stays below the oldest of them.
+  private final NavigableSet<Long> pendingCommits = new TreeSet<>();
+  // Timestamps of commits not every participant acknowledged, reused when they are re-driven.
+  private final Map<UUID, Long> unfinishedCommitTimestamps = new ConcurrentHashMap<>();
+  private static final long STABLE_INTERVAL_MILLIS =
+      Long.getLong("twopc.mvcc.stableIntervalMillis", 100L);
+
+  // Participants return their votes inline unless the callback mode is selected with
+  // -Dtwopc.votes=callback, in which case they report through update*Responses.
+  private static final boolean CALLBACK_VOTES =
+      "callback".equalsIgnoreCase(System.getProperty("twopc.votes", "inline"));
+
+  private final ParticipantDispatcher dispatcher = new ParticipantDispatcher();
+
+  // Commit decisions, kept under twopc.data.dir unless the logs are disabled.
+  private DecisionLog decisionLog = null;
+  private static final long DECISION_LOG_COMPACT_MILLIS =
+      Long.getLong("twopc.decisionLog.compactMillis", 30 * 1000L);
+
+  // Requests arriving within the window share one prepare/commit round. The callback protocol
+  // only carries a single operation, so callback mode does not batch requests together.
+  private final GroupCommitter groupCommitter = new GroupCommitter(
+      this::runMeasuredRound,
+      Long.getLong("twopc.groupCommit.windowMillis", 0L),
+      CALLBACK_VOTES ? 1 : Integer.getInteger("twopc.groupCommit.maxBatchSize", 64),
+      Integer.getInteger("twopc.groupCommit.concurrentRounds", 4));
+
+  // Phase latencies and outcomes of the rounds; the participant latencies are keyed by port
+  // once the servers are set up, so recording an RPC never looks a histogram up by name.
+  private final LatencyHistogram preparePhaseLatency = this.metrics.histogram("preparePhase");
+  private final LatencyHistogram commitPhaseLatency = this.metrics.histogram("commitPhase");
+  private final LatencyHistogram onePhaseCommitLatency =
+      this.metrics.histogram("onePhaseCommit");
+  private final Map<Integer, LatencyHistogram> prepareLatencies = new HashMap<>();
+  private final Map<Integer, LatencyHistogram> commitLatencies = new HashMap<>();
+  private final LongAdder inFlightTransactions = this.metrics.counter("transactions.inFlight");
+  private final LongAdder timedOutPhases = this.metrics.counter("phases.timedOut");
+  private final LongAdder rejectedTransactions = this.metrics.counter("transactions.rejected");
+  private final Map<TransactionResult.Status, LongAdder> outcomes =
+      new EnumMap<>(TransactionResult.Status.class);
 
   public Coordinator(Integer portNumber) {
     super(portNumber);
+    this.metrics.gauge("transactions.tracked", () -> this.transactions.size());
+    for (TransactionResult.Status status : TransactionResult.Status.values()) {
+      this.outcomes.put(status, this.metrics.counter("transactions." + status));
+    }
   }
 
 
@@ -48,11 +110,11 @@ public class Coordinator extends Server implements ICoordinator {
     Coordinator coordinator = ((Coordinator) server);
     if (coordinator.canParseProgramArgs(args)) {
       try {
-        server = (IServer) UnicastRemoteObject.exportObject(coordinator, 10000);
-        Registry registry = LocateRegistry.createRegistry(10000);
-        registry.bind("COORDINATOR", server);
+        Transport.SELECTED.export(10000, "COORDINATOR", coordinator);
         coordinator.setUpServerStubsAndRegistries();
         coordinator.broadCastOtherServerPorts();
+        coordinator.recoverDecisions();
+        coordinator.startPublishingStableTimestamps();
       } catch (Exception e) {
         System.err.println("Coordinator exception: " + e.toString());
         e.printStackTrace();
@@ -66,114 +128,580 @@ public class Coordinator extends Server implements ICoordinator {
   @Override
   public String handleRequest(UUID requestID, String operation, String key, String value)
       throws RemoteException {
+    TransactionResult outcome = handleTransaction(requestID,
+        Collections.singletonList(new Operation(operation, key, value)));
+    return describeOutcome(this.myPortNumber, requestID, outcome);
+  }
+
+
+  // The reply handleRequest gives the client; servers build it from the compact result too.
+  static String describeOutcome(Integer port, UUID requestID, TransactionResult outcome) {
     String greetingFromCoordinator = String.format("Coordinator at port: %s says Hello!",
-        this.myPortNumber) + " Coordinator is ready to start the 2PC process.";
-    String messageToClient = greetingFromCoordinator
-        + handlePrepare(requestID, operation, key, value);
-    if (messageToClient.contains("failed to prepare")) {
-      return messageToClient;
-    } else {
-      return messageToClient + handleCommit(requestID, operation, key, value);
-    }
-  }
-
-
-  private String handlePrepare(UUID requestID, String operation, String key, String value) {
-    dispatchPrepare(requestID, operation, key, value);
-    long startTime = System.currentTimeMillis();
-    long elapsedTime = 0L;
-    boolean allServersHasPrepared;
-    do {
-      allServersHasPrepared =
-          this.serverPorts.stream()
-              .map(port -> this.serverPreparationResponses.get(port))
-              .map((list) -> {
-                boolean statuses = list.contains(requestID) == true;
-                return statuses;
-              })
-              .collect(Collectors.toList())
-              .size() == serverPorts.size();
-      elapsedTime = (new Date()).getTime() - startTime;
-      // If a minutes has passed and not all servers responded, return a failure message
-      if (elapsedTime > 60 * 1000) {
-        return String.format("\nCoordinator failed to prepare servers for request %s.", requestID);
-      }
-    } while (!allServersHasPrepared);
-    return String.format(
+        port) + " Coordinator is ready to start the 2PC process.";
+    String messageToClient = greetingFromCoordinator;
+    if (outcome.getStatus() == TransactionResult.Status.PREPARE_FAILED) {
+      return messageToClient
+          + String.format("\nCoordinator failed to prepare servers for request %s.", requestID)
+          + describeAbortReasons(outcome);
+    }
+    messageToClient += String.format(
         "\nCoordinator Succeeded to affirm that all servers prepared for request %s.", requestID);
+    if (outcome.getStatus() == TransactionResult.Status.COMMIT_FAILED) {
+      return messageToClient
+          + String.format("\nCoordinator failed to commit servers for for request %s.", requestID)
+          + describeAbortReasons(outcome);
+    }
+    return messageToClient + String.format(
+        "\nCoordinator Succeeded to affirm that all servers committed for request %s.",
+        requestID);
   }
 
+  private static String describeAbortReasons(TransactionResult outcome) {
+    return outcome.getAbortReasons().isEmpty()
+        ? ""
+        : String.format("\nAbort reasons by port: %s.", outcome.getAbortReasons());
+  }
 
-  // Called by server to update coordinator's record of serverPreparationResponses
-  public void updatePreparationResponses(Integer port, UUID requestID) {
-    ((Coordinator) this).serverPreparationResponses.put(
-        port, serverPreparationResponses.getOrDefault(port, Arrays.asList(requestID))
-    );
+
+  @Override
+  public TransactionResult handleTransaction(UUID requestID, List<Operation> operations)
+      throws RemoteException {
+    // Checked before batching, so a malformed request never fails the requests batched with it.
+    for (Operation operation : operations) {
+      if (operation == null || !operation.isValid()) {
+        return new TransactionResult(requestID, TransactionResult.Status.PREPARE_FAILED,
+            Collections.singletonMap(this.myPortNumber, AbortReason.INVALID_OPERATION));
+      }
+    }
+    // A round tracks at most MAX_PARTICIPANTS votes, which only more servers than that can pass.
+    if (this.serverPorts.size() > VoteTracker.MAX_PARTICIPANTS
+        && new TransactionPlan(this.ring, operations).getParticipants().size()
+            > VoteTracker.MAX_PARTICIPANTS) {
+      return new TransactionResult(requestID, TransactionResult.Status.PREPARE_FAILED,
+          Collections.singletonMap(this.myPortNumber, AbortReason.TOO_MANY_PARTICIPANTS));
+    }
+    try {
+      return this.groupCommitter.submit(requestID, new ArrayList<>(operations)).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RemoteException("Coordinator was interrupted during request " + requestID, e);
+    } catch (ExecutionException e) {
+      throw new RemoteException("Coordinator failed during request " + requestID, e.getCause());
+    }
   }
 
 
-  private void dispatchPrepare(UUID requestID, String operation, String key, String value) {
-    ((Coordinator) this).serverPorts.forEach((port) -> {
-      IServer stub = ((Coordinator) this).serverStubs.get(port);
+  private TransactionResult runMeasuredRound(UUID transactionID, List<Operation> operations) {
+    this.inFlightTransactions.increment();
+    try {
+      TransactionResult outcome = runTwoPhaseCommit(transactionID, operations);
+      this.outcomes.get(outcome.getStatus()).increment();
+      return outcome;
+    } finally {
+      this.inFlightTransactions.decrement();
+    }
+  }
+
+
+  // Runs one prepare/commit round for every operation the group committer batched together.
+  // Only the replicas that own the keys of the operations take part in the round.
+  private TransactionResult runTwoPhaseCommit(UUID transactionID, List<Operation> operations) {
+    TransactionPlan plan = new TransactionPlan(this.ring, operations);
+    if (!CALLBACK_VOTES && plan.getParticipants().size() == 1) {
+      return runOnePhaseCommit(transactionID, plan);
+    }
+    VoteTracker preparation = handlePrepare(transactionID, plan);
+    if (preparation == null) {
+      return new TransactionResult(transactionID, TransactionResult.Status.PREPARE_FAILED,
+          Collections.singletonMap(this.myPortNumber, AbortReason.OVERLOADED));
+    }
+    if (!preparation.isUnanimous()) {
+      // Sent as soon as the first participant votes no, so the others stop waiting for locks.
+      dispatchAbort(transactionID, plan.getParticipants());
+      return new TransactionResult(transactionID, TransactionResult.Status.PREPARE_FAILED,
+          preparation.getAbortReasons());
+    }
+    Map<Integer, List<String>> results = new HashMap<>(preparation.getResults());
+    Set<Integer> writers = new LinkedHashSet<>(plan.getParticipants());
+    writers.removeAll(preparation.getReadOnlyPorts());
+    if (writers.isEmpty()) {
+      // Every participant only read, so there is no decision to log or commit to send.
+      return new TransactionResult(transactionID, TransactionResult.Status.COMMITTED,
+          plan.mergeResults(results));
+    }
+    long commitTimestamp = issueCommitTimestamp();
+    if (this.decisionLog != null) {
       try {
-        stub.prepare(requestID, operation, key, value);
-      } catch (RemoteException | NotBoundException e) {
-        throw new RuntimeException(e);
+        this.decisionLog.logCommit(transactionID);
+      } catch (IOException e) {
+        // A decision that is not durable must not be acted on, so presume abort.
+        System.err.println("Coordinator failed to log its decision: " + e);
+        finishCommitTimestamp(commitTimestamp);
+        dispatchAbort(transactionID, writers);
+        return new TransactionResult(transactionID, TransactionResult.Status.PREPARE_FAILED,
+            Collections.singletonMap(this.myPortNumber, AbortReason.DECISION_LOG_FAILURE));
+      }
+    }
+    VoteTracker commit = handleCommit(transactionID, plan, writers, commitTimestamp);
+    if (commit.isUnanimous()) {
+      retireCommit(transactionID, commitTimestamp);
+    } else if (this.decisionLog == null && commit.getAbortedPorts().containsAll(writers)) {
+      // Only this coordinator's memory holds the decision if no participant took it, so it is
+      // still re-driven but the outcome is not known.
+      return new TransactionResult(transactionID, TransactionResult.Status.COMMIT_FAILED,
+          commit.getAbortReasons());
+    }
+    // The decision stands: participants that have not committed yet get it from the re-driven
+    // commit or from their peers, so a slow or failing one does not fail the transaction.
+    results.putAll(commit.getResults());
+    return new TransactionResult(transactionID, TransactionResult.Status.COMMITTED,
+        plan.mergeResults(results), commitTimestamp);
+  }
+
+
+  /**
+   * Commits a transaction that only one server takes part in with a single call. The participant
+   * prepares and commits on its own and its commit record is the decision, so the coordinator
+   * neither collects a vote nor logs anything. The timestamp issued here holds the stable
+   * timestamp back; the participant commits at it or, if a commit to its keys got there first
+   * with a later one, at a later timestamp of its own.
+   */
+  private TransactionResult runOnePhaseCommit(UUID transactionID, TransactionPlan plan) {
+    Integer participant = plan.getParticipants().iterator().next();
+    long commitTimestamp = issueCommitTimestamp();
+    long stableTimestamp = getStableTimestamp();
+    long startTime = System.nanoTime();
+    CompletableFuture<Vote> reply = this.dispatcher.fanOut(plan.getParticipants(),
+        timed(this.commitLatencies, this.commitTimeouts,
+            (port) -> this.serverStubs.get(port).commitVote(new TransactionMessage(transactionID,
+                plan.operationsFor(port), commitTimestamp, stableTimestamp))))
+        .get(participant);
+    // A participant that timed out may still commit, so the timestamp waits for its reply.
+    reply.whenComplete((vote, failure) -> {
+      if (vote != null) {
+        this.clock.observe(vote.getTimestamp());
       }
+      finishCommitTimestamp(commitTimestamp);
     });
+    Vote vote;
+    try {
+      vote = reply.get(this.commitTimeouts.timeoutNanos(participant), TimeUnit.NANOSECONDS);
+    } catch (TimeoutException e) {
+      this.timedOutPhases.increment();
+      return new TransactionResult(transactionID, TransactionResult.Status.COMMIT_FAILED,
+          Collections.singletonMap(participant, AbortReason.TIMEOUT));
+    } catch (ExecutionException e) {
+      // The participant may or may not have committed, and recovery settles it either way.
+      return new TransactionResult(transactionID, TransactionResult.Status.COMMIT_FAILED,
+          Collections.singletonMap(participant, AbortReason.UNREACHABLE));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return new TransactionResult(transactionID, TransactionResult.Status.COMMIT_FAILED,
+          Collections.emptyMap());
+    } finally {
+      this.onePhaseCommitLatency.record(System.nanoTime() - startTime);
+    }
+    if (!vote.isYes()) {
+      dispatchAbort(transactionID, plan.getParticipants());
+      return new TransactionResult(transactionID, TransactionResult.Status.PREPARE_FAILED,
+          Collections.singletonMap(participant, reasonOf(vote)));
+    }
+    // The participant stamped the commit once it held the locks, no earlier than the issued one.
+    return new TransactionResult(transactionID, TransactionResult.Status.COMMITTED,
+        plan.mergeResults(Collections.singletonMap(participant, vote.getResults())),
+        vote.getTimestamp() > 0 ? vote.getTimestamp() : commitTimestamp);
   }
 
 
-  private String handleCommit(UUID requestID, String operation, String key, String value) {
-    ((Coordinator) this).dispatchCommit(requestID, operation, key, value);
-    long startTime = System.currentTimeMillis();
-    long elapsedTime = 0L;
-    boolean allServersHasCommited;
-    String coordinatorFailedToCommit =
-        String.format("\nCoordinator failed to commit servers for for request %s.", requestID);
-    do {
-      try {
-        allServersHasCommited =
-            this.serverPorts.stream()
-                .map(port -> this.serverCommitResponses.get(port))
-                .map((list) -> {
-                  if (list.size() == 0) {
-                    return coordinatorFailedToCommit;
-                  }
-                  boolean statuses = list.contains(requestID) == true;
-                  return statuses;
-                })
-                .collect(Collectors.toList())
-                .size() == serverPorts.size();
-        elapsedTime = (new Date()).getTime() - startTime;
-      } catch (Exception e) {
-        return coordinatorFailedToCommit + "\n" + e;
+  // Returns the tracker of the prepare phase, unanimous only if every participant voted yes,
+  // or null if the transaction was turned away because too many are in flight.
+  private VoteTracker handlePrepare(UUID transactionID, TransactionPlan plan) {
+    VoteTracker tracker = new VoteTracker(transactionID, VoteTracker.Phase.PREPARE,
+        plan.getParticipants(), ParticipantTimeouts.maxNanos(), TimeUnit.NANOSECONDS);
+    if (!this.transactions.begin(tracker)) {
+      this.rejectedTransactions.increment();
+      return null;
+    }
+    long startTime = System.nanoTime();
+    try {
+      dispatchPrepare(transactionID, plan, tracker);
+      awaitPhase(tracker, this.prepareTimeouts, startTime);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      this.transactions.finish(tracker);
+      this.preparePhaseLatency.record(System.nanoTime() - startTime);
+    }
+    return tracker;
+  }
+
+
+  // Called by server to record its yes vote in the prepare phase of the transaction
+  public void updatePreparationResponses(Integer port, UUID requestID) {
+    VoteTracker tracker = this.transactions.get(requestID, VoteTracker.Phase.PREPARE);
+    if (tracker != null) {
+      tracker.recordVote(port);
+    }
+  }
+
+
+  private void dispatchPrepare(UUID transactionID, TransactionPlan plan, VoteTracker tracker) {
+    // The callback protocol carries one operation; larger transactions always vote inline.
+    if (CALLBACK_VOTES && plan.getOperationCount() == 1) {
+      Operation operation = plan.getOperation(0);
+      this.dispatcher.fanOut(plan.getParticipants(), timed(this.prepareLatencies,
+          this.prepareTimeouts, (port) -> this.serverStubs.get(port).prepare(transactionID,
+              operation.getOperation(), operation.getKey(), operation.getValue())))
+          .forEach((port, reply) -> reply.whenComplete((message, failure) -> {
+            // An unreachable or failing participant counts as a vote to abort.
+            if (failure != null) {
+              tracker.recordAbort(port, AbortReason.UNREACHABLE);
+            } else if (message.contains("Failure |")) {
+              tracker.recordAbort(port, AbortReason.VOTED_NO);
+            }
+          }));
+      return;
+    }
+    long stableTimestamp = getStableTimestamp();
+    // Each participant learns who else writes, so it can ask them if this coordinator fails.
+    Set<Integer> writers = plan.getWriters();
+    this.dispatcher.fanOut(plan.getParticipants(), timed(this.prepareLatencies,
+        this.prepareTimeouts,
+        (port) -> this.serverStubs.get(port).prepareVote(new TransactionMessage(transactionID,
+            plan.operationsFor(port), 0, stableTimestamp, writers))))
+        .forEach((port, reply) -> reply.whenComplete((vote, failure) -> {
+          if (failure != null) {
+            tracker.recordAbort(port, AbortReason.UNREACHABLE);
+          } else if (vote.getDecision() == Vote.Decision.READ_ONLY) {
+            tracker.recordReadOnlyVote(port, vote.getResults());
+          } else if (vote.isYes()) {
+            // Before the vote counts, so the commit timestamp is later than the participant's.
+            this.clock.observe(vote.getTimestamp());
+            tracker.recordVote(port);
+          } else {
+            tracker.recordAbort(port, reasonOf(vote));
+          }
+        }));
+  }
+
+  private static AbortReason reasonOf(Vote vote) {
+    return vote.getReason() != null ? vote.getReason() : AbortReason.VOTED_NO;
+  }
+
+  /**
+   * Waits until every participant has voted or one has voted to abort. A participant that has
+   * not answered within its own timeout, counted from the start of the phase, votes to abort,
+   * so the phase ends with the first failure instead of waiting out the slowest participant.
+   */
+  private void awaitPhase(VoteTracker tracker, ParticipantTimeouts timeouts, long startTime)
+      throws InterruptedException {
+    while (!tracker.isDecided()) {
+      long now = System.nanoTime();
+      long wait = Long.MAX_VALUE;
+      for (Integer port : tracker.getMissingPorts()) {
+        long remaining = startTime + timeouts.timeoutNanos(port) - now;
+        if (remaining > 0) {
+          wait = Math.min(wait, remaining);
+        } else if (tracker.recordAbort(port, AbortReason.TIMEOUT)) {
+          this.timedOutPhases.increment();
+        }
       }
-      // If a minutes has passed and not all servers responded, return a failure message
-      if (elapsedTime > 60 * 1000) {
-        return coordinatorFailedToCommit;
+      tracker.awaitDecision(wait, TimeUnit.NANOSECONDS);
+    }
+  }
+
+
+  /**
+   * Waits until every participant has replied or passed its timeout, counted from the start of
+   * the phase. Unlike awaitPhase it goes on after a failure, as the decision no longer depends
+   * on the votes and every reply that comes in still acknowledges it.
+   */
+  private void awaitReplies(VoteTracker tracker, ParticipantTimeouts timeouts, long startTime)
+      throws InterruptedException {
+    while (!tracker.hasAllVotes()) {
+      long now = System.nanoTime();
+      long wait = Long.MAX_VALUE;
+      for (Integer port : tracker.getMissingPorts()) {
+        long remaining = startTime + timeouts.timeoutNanos(port) - now;
+        if (remaining > 0) {
+          wait = Math.min(wait, remaining);
+        } else if (tracker.recordAbort(port, AbortReason.TIMEOUT)) {
+          this.timedOutPhases.increment();
+        }
       }
-    } while (!allServersHasCommited);
-    return String.format(
-        "\nCoordinator Succeeded to affirm that all servers committed for request %s.",
-        requestID);
+      tracker.awaitVotes(wait, TimeUnit.NANOSECONDS);
+    }
+  }
+
+
+  // Returns the tracker of the commit phase, unanimous only if every participant committed.
+  private VoteTracker handleCommit(UUID transactionID, TransactionPlan plan,
+      Set<Integer> participants, long commitTimestamp) {
+    VoteTracker tracker = new VoteTracker(transactionID, VoteTracker.Phase.COMMIT,
+        participants, ParticipantTimeouts.maxNanos(), TimeUnit.NANOSECONDS);
+    // The decision is taken, so the commit is tracked even if the table is full.
+    this.transactions.advance(tracker);
+    long startTime = System.nanoTime();
+    CompletableFuture<Boolean> acknowledged = ((Coordinator) this).dispatchCommit(transactionID,
+        plan, participants, commitTimestamp, tracker);
+    try {
+      awaitReplies(tracker, this.commitTimeouts, startTime);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      if (!tracker.isUnanimous()) {
+        holdFailedCommit(transactionID, participants, commitTimestamp, acknowledged);
+      }
+      this.transactions.finish(tracker);
+      this.commitPhaseLatency.record(System.nanoTime() - startTime);
+    }
+    return tracker;
+  }
+
+  /**
+   * The decision of a failed commit stands. With a decision log it is re-driven until every
+   * participant commits: once the replies still on their way are in, the participants are sent
+   * the commit again unless all of them committed, and the decision log maintenance keeps
+   * asking after that. Without one, the timestamp is only held until those replies are in.
+   */
+  private void holdFailedCommit(UUID transactionID, Set<Integer> participants,
+      long commitTimestamp, CompletableFuture<Boolean> acknowledged) {
+    this.unfinishedCommitTimestamps.put(transactionID, commitTimestamp);
+    acknowledged.thenCompose((allCommitted) -> allCommitted
+        ? CompletableFuture.completedFuture(true)
+        : resendCommit(transactionID, participants, commitTimestamp))
+        .thenAccept((allCommitted) -> {
+          if (allCommitted) {
+            retireCommit(transactionID, commitTimestamp);
+          }
+        });
   }
 
-  // Called by server to update coordinator's record of serverCommitResponses
+  // Every participant has committed, so the decision is no longer needed.
+  private void retireCommit(UUID transactionID, long commitTimestamp) {
+    if (this.decisionLog != null) {
+      this.decisionLog.logEnd(transactionID);
+    }
+    this.unfinishedCommitTimestamps.remove(transactionID);
+    finishCommitTimestamp(commitTimestamp);
+  }
+
+  // Called by server to record its acknowledgement in the commit phase of the transaction
   public void updateCommitResponses(Integer port, UUID requestID) {
-    ((Coordinator) this).serverCommitResponses.put(
-        port, serverCommitResponses.getOrDefault(port, Arrays.asList(requestID))
-    );
+    VoteTracker tracker = this.transactions.get(requestID, VoteTracker.Phase.COMMIT);
+    if (tracker != null) {
+      tracker.recordVote(port);
+    }
+  }
+
+  // Returns a future that completes once every participant has replied, with whether all of
+  // them committed.
+  private CompletableFuture<Boolean> dispatchCommit(UUID transactionID, TransactionPlan plan,
+      Set<Integer> participants, long commitTimestamp, VoteTracker tracker) {
+    if (CALLBACK_VOTES && plan.getOperationCount() == 1) {
+      Operation operation = plan.getOperation(0);
+      Map<Integer, CompletableFuture<String>> replies = this.dispatcher.fanOut(participants,
+          timed(this.commitLatencies, this.commitTimeouts,
+              (port) -> this.serverStubs.get(port).commit(transactionID,
+                  operation.getOperation(), operation.getKey(), operation.getValue(),
+                  commitTimestamp)));
+      replies.forEach((port, reply) -> reply.whenComplete((message, failure) -> {
+        if (failure != null) {
+          tracker.recordAbort(port, AbortReason.UNREACHABLE);
+        } else if (message.contains("Failure |")) {
+          tracker.recordAbort(port, AbortReason.VOTED_NO);
+        }
+      }));
+      return allSatisfy(replies.values(), (message) -> !message.contains("Failure |"));
+    }
+    long stableTimestamp = getStableTimestamp();
+    Map<Integer, CompletableFuture<Vote>> replies = this.dispatcher.fanOut(participants,
+        timed(this.commitLatencies, this.commitTimeouts,
+            (port) -> this.serverStubs.get(port).commitVote(new TransactionMessage(transactionID,
+                plan.operationsFor(port), commitTimestamp, stableTimestamp))));
+    replies.forEach((port, reply) -> reply.whenComplete((vote, failure) -> {
+      if (failure != null) {
+        tracker.recordAbort(port, AbortReason.UNREACHABLE);
+      } else if (vote.isYes()) {
+        tracker.recordResults(port, vote.getResults());
+        tracker.recordVote(port);
+      } else {
+        tracker.recordAbort(port, reasonOf(vote));
+      }
+    }));
+    return allSatisfy(replies.values(), Vote::isYes);
+  }
+
+  // Completes once every reply is in, with whether all of them arrived and pass the check.
+  private static <T> CompletableFuture<Boolean> allSatisfy(
+      Collection<CompletableFuture<T>> replies, Predicate<T> check) {
+    CompletableFuture<Boolean> all = CompletableFuture.completedFuture(true);
+    for (CompletableFuture<T> reply : replies) {
+      all = all.thenCombine(reply.handle((value, failure) -> failure == null && check.test(value)),
+          Boolean::logicalAnd);
+    }
+    return all;
+  }
+
+  // Hands out a commit timestamp and holds the stable timestamp below it until it is finished.
+  private long issueCommitTimestamp() {
+    synchronized (this.pendingCommits) {
+      long commitTimestamp = this.clock.next();
+      this.pendingCommits.add(commitTimestamp);
+      return commitTimestamp;
+    }
+  }
+
+  private void finishCommitTimestamp(long commitTimestamp) {
+    synchronized (this.pendingCommits) {
+      this.pendingCommits.remove(commitTimestamp);
+    }
   }
 
-  private void dispatchCommit(UUID requestID, String operation, String key, String value) {
-    ((Coordinator) this).serverPorts.forEach((port) -> {
-      IServer stub = ((Coordinator) this).serverStubs.get(port);
+  // With no commit in flight every later commit gets a larger timestamp, so the stable
+  // timestamp is now and idle servers still read fresh snapshots and collect old versions.
+  @Override
+  public long getStableTimestamp() {
+    synchronized (this.pendingCommits) {
+      return this.pendingCommits.isEmpty()
+          ? this.clock.next()
+          : this.pendingCommits.first() - 1;
+    }
+  }
+
+  // Tells the servers how far the stable timestamp has moved, so snapshot reads stay fresh and
+  // old versions get collected even when no transaction carries it to them.
+  private void startPublishingStableTimestamps() {
+    Thread publisher = new Thread(() -> {
+      long published = 0;
+      while (!Thread.currentThread().isInterrupted()) {
+        try {
+          Thread.sleep(STABLE_INTERVAL_MILLIS);
+        } catch (InterruptedException e) {
+          return;
+        }
+        long stableTimestamp = getStableTimestamp();
+        if (stableTimestamp != published) {
+          this.dispatcher.fanOut(this.serverPorts, (port) -> {
+            this.serverStubs.get(port).advanceStableTimestamp(stableTimestamp);
+            return null;
+          });
+          published = stableTimestamp;
+        }
+      }
+    }, "stable-timestamp");
+    publisher.setDaemon(true);
+    publisher.start();
+  }
+
+  // Records the round trip of every call in the histogram of the participant it went to, and
+  // of every call that got an answer in its timeout estimate.
+  private static <T> ParticipantDispatcher.ParticipantCall<T> timed(
+      Map<Integer, LatencyHistogram> latencies, ParticipantTimeouts timeouts,
+      ParticipantDispatcher.ParticipantCall<T> call) {
+    return (port) -> {
+      long startTime = System.nanoTime();
+      boolean answered = false;
+      try {
+        T reply = call.call(port);
+        answered = true;
+        return reply;
+      } finally {
+        long elapsed = System.nanoTime() - startTime;
+        latencies.get(port).record(elapsed);
+        if (answered) {
+          timeouts.record(port, elapsed);
+        }
+      }
+    };
+  }
+
+  /**
+   * Replays the decision log after a restart. Every transaction a participant still holds as
+   * prepared is committed if the log has a commit for it and aborted otherwise, then every
+   * commit that was not acknowledged by all participants is driven to completion again. Starts
+   * retrying unacknowledged commits in the background, with or without a log.
+   */
+  private void recoverDecisions() throws IOException {
+    if (WAL_ENABLED) {
+      this.decisionLog = new DecisionLog(DATA_DIRECTORY.resolve("coordinator.log"));
+      Set<UUID> unfinishedCommits = this.decisionLog.recover();
+      for (Integer port : this.serverPorts) {
+        for (UUID requestID : this.serverStubs.get(port).getPreparedTransactions()) {
+          if (!unfinishedCommits.contains(requestID)) {
+            this.serverStubs.get(port).abort(requestID);
+          }
+        }
+      }
+      unfinishedCommits.forEach(this::redriveCommit);
+      System.out.println(String.format(
+          "Coordinator recovered %s unfinished commit decisions.", unfinishedCommits.size()));
+    }
+    Thread maintenance = new Thread(this::maintainDecisionLog, "decision-log-maintenance");
+    maintenance.setDaemon(true);
+    maintenance.start();
+  }
+
+  // Periodically retries stuck commits and drops finished decisions from the log. Without a
+  // log the commits held in memory are retried, for as long as the coordinator runs.
+  private void maintainDecisionLog() {
+    while (!Thread.currentThread().isInterrupted()) {
       try {
-        stub.commit(requestID, operation, key, value);
-      } catch (RemoteException | NotBoundException e) {
-        throw new RuntimeException(e);
+        Thread.sleep(DECISION_LOG_COMPACT_MILLIS);
+      } catch (InterruptedException e) {
+        return;
+      }
+      if (this.decisionLog == null) {
+        new HashMap<>(this.unfinishedCommitTimestamps).forEach(this::redriveCommit);
+        continue;
       }
+      this.decisionLog.unfinishedCommitsOlderThan(PHASE_TIMEOUT_MILLIS)
+          .forEach(this::redriveCommit);
+      this.decisionLog.compact();
+    }
+  }
+
+  // Participants commit what they prepared for the transaction; a repeated commit is harmless.
+  // The log does not record who took part, so every server is asked and the others commit
+  // an empty transaction. A commit recovered from the log gets a new timestamp.
+  private void redriveCommit(UUID transactionID) {
+    redriveCommit(transactionID, this.unfinishedCommitTimestamps.computeIfAbsent(transactionID,
+        (id) -> issueCommitTimestamp()));
+  }
+
+  private void redriveCommit(UUID transactionID, long commitTimestamp) {
+    long stableTimestamp = getStableTimestamp();
+    boolean allCommitted = this.dispatcher.fanOut(this.serverPorts,
+        (port) -> this.serverStubs.get(port).commitVote(new TransactionMessage(transactionID,
+            Collections.emptyList(), commitTimestamp, stableTimestamp)))
+        .values().stream()
+        .allMatch((reply) -> {
+          try {
+            return reply.get(PHASE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).isYes();
+          } catch (Exception e) {
+            return false;
+          }
+        });
+    if (allCommitted) {
+      retireCommit(transactionID, commitTimestamp);
+    }
+  }
+
+  // Participants still prepared commit what they prepared; those already done reply read-only.
+  private CompletableFuture<Boolean> resendCommit(UUID transactionID, Set<Integer> participants,
+      long commitTimestamp) {
+    long stableTimestamp = getStableTimestamp();
+    return allSatisfy(this.dispatcher.fanOut(participants,
+        (port) -> this.serverStubs.get(port).commitVote(new TransactionMessage(transactionID,
+            Collections.<Operation>emptyList(), commitTimestamp, stableTimestamp))).values(),
+        Vote::isYes);
+  }
+
+  // Tells the participants to release the transaction; nobody waits for the replies.
+  private void dispatchAbort(UUID transactionID, Collection<Integer> participants) {
+    this.dispatcher.fanOut(participants, (port) -> {
+      this.serverStubs.get(port).abort(transactionID);
+      return null;
     });
   }
 
@@ -210,36 +738,45 @@ public class Coordinator extends Server implements ICoordinator {
     ((Coordinator) this).serverPorts
         .stream()
         .forEach((portNumber) -> {
-          IServer server = new Server(portNumber);
-          Registry registry;
+          Server participant = new Server(portNumber);
+          IParticipant server;
           try {
-            server = (IServer) UnicastRemoteObject.exportObject(server, portNumber);
-            registry = LocateRegistry.createRegistry(portNumber);
-            registry.bind("SERVER", server);
-          } catch (RemoteException | AlreadyBoundException e) {
+            participant.recover();
+            Transport.SELECTED.export(portNumber, "SERVER", participant);
+            server = Transport.SELECTED.lookup("LOCALHOST", portNumber, "SERVER",
+                IParticipant.class);
+          } catch (IOException | NotBoundException e) {
             System.err.println("\n" + String.format(
                 "Coordinator is unable to bind a registry for server at port number: %s.",
                 portNumber));
             throw new RuntimeException(e);
           }
+          this.servers.put(portNumber, participant);
           this.serverStubs.put(portNumber, server);
+          this.prepareLatencies.put(portNumber,
+              this.metrics.histogram(String.format("participant.%s.prepare", portNumber)));
+          this.commitLatencies.put(portNumber,
+              this.metrics.histogram(String.format("participant.%s.commit", portNumber)));
+          this.metrics.gauge(String.format("participant.%s.prepareTimeoutMillis", portNumber),
+              () -> TimeUnit.NANOSECONDS.toMillis(this.prepareTimeouts.timeoutNanos(portNumber)));
+          this.metrics.gauge(String.format("participant.%s.commitTimeoutMillis", portNumber),
+              () -> TimeUnit.NANOSECONDS.toMillis(this.commitTimeouts.timeoutNanos(portNumber)));
         });
+    this.ring = HashRing.of(this.serverPorts);
   }
 
   private void broadCastOtherServerPorts() throws Exception {
-    Set<Integer> otherServers = new HashSet<>();
     ((Coordinator) this).serverPorts.forEach(
         (self) -> {
           try {
-            Registry registry = LocateRegistry.getRegistry(self);
-            IServer stub = (IServer) registry.lookup("SERVER");
+            Set<Integer> otherServers = new HashSet<>();
             for (Integer port : serverPorts) {
-              if (port != self) {
+              if (!port.equals(self)) {
                 otherServers.add(port);
               }
             }
-            stub.setOtherServers(otherServers);
-          } catch (RemoteException | NotBoundException e) {
+            this.serverStubs.get(self).setOtherServers(otherServers);
+          } catch (RemoteException e) {
             System.out.println(
                 "Coordinator cannot connect to server at the following port " + self);
             throw new RuntimeException(e);
@@ -0,0 +1,136 @@
+package org.server;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * The coordinator's record of commit decisions, following presumed abort: only commits are
+ * logged, forced to disk before any participant is told to commit, and a transaction with no
+ * record is treated as aborted. Once every participant has acknowledged a commit an unforced
+ * end record retires it, and compact drops retired decisions from the file.
+ */
+class DecisionLog {
+
+  private final WriteAheadLog log;
+  // Committed transactions that not every participant has acknowledged yet, with the time the
+  // decision was taken.
+  private final Map<UUID, Long> unfinishedCommits = new ConcurrentHashMap<>();
+  // Commit records appended but not yet known to be on disk. Guarded by itself, so compact sees
+  // every record appended before its roll along with the outcome of the append.
+  private final Map<UUID, CompletableFuture<Void>> pendingCommits = new HashMap<>();
+
+  DecisionLog(Path path) throws IOException {
+    this.log = new WriteAheadLog(path);
+  }
+
+  // Replays the file and returns the commits that were never acknowledged by everyone.
+  Set<UUID> recover() throws IOException {
+    this.log.replay(0, (type, requestID, operations) -> {
+      if (type == WriteAheadLog.COMMIT) {
+        this.unfinishedCommits.put(requestID, 0L);
+      } else if (type == WriteAheadLog.END) {
+        this.unfinishedCommits.remove(requestID);
+      }
+    });
+    return unfinishedCommits();
+  }
+
+  /**
+   * Returns once the decision is on disk; the group fsync is shared with concurrent commits.
+   * The commit only counts as unfinished from then on, so a failed append is never carried
+   * into a compacted file.
+   */
+  void logCommit(UUID requestID) throws IOException {
+    CompletableFuture<Void> durable;
+    synchronized (this.pendingCommits) {
+      durable = this.log.append(WriteAheadLog.COMMIT, requestID, Collections.emptyList());
+      this.pendingCommits.put(requestID, durable);
+    }
+    try {
+      durable.get();
+      this.unfinishedCommits.put(requestID, System.currentTimeMillis());
+      forgetPending(requestID);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      retire(requestID);
+      throw new IOException("Interrupted while logging the commit of " + requestID, e);
+    } catch (ExecutionException e) {
+      retire(requestID);
+      throw new IOException("Unable to log the commit of " + requestID, e.getCause());
+    }
+  }
+
+  private void forgetPending(UUID requestID) {
+    synchronized (this.pendingCommits) {
+      this.pendingCommits.remove(requestID);
+    }
+  }
+
+  // The record of a commit that failed may still reach the disk, so an end record follows it,
+  // in the same file should a compaction have carried the commit over.
+  private void retire(UUID requestID) {
+    forgetPending(requestID);
+    this.log.append(WriteAheadLog.END, requestID, Collections.emptyList());
+  }
+
+  void logEnd(UUID requestID) {
+    if (this.unfinishedCommits.remove(requestID) != null) {
+      this.log.append(WriteAheadLog.END, requestID, Collections.emptyList());
+    }
+  }
+
+  boolean isCommitted(UUID requestID) {
+    return this.unfinishedCommits.containsKey(requestID);
+  }
+
+  Set<UUID> unfinishedCommits() {
+    return new HashSet<>(this.unfinishedCommits.keySet());
+  }
+
+  // Commits decided more than the given age ago that are still waiting for acknowledgements.
+  Set<UUID> unfinishedCommitsOlderThan(long ageMillis) {
+    long cutoff = System.currentTimeMillis() - ageMillis;
+    Set<UUID> stale = new HashSet<>();
+    this.unfinishedCommits.forEach((requestID, decidedAt) -> {
+      if (decidedAt <= cutoff) {
+        stale.add(requestID);
+      }
+    });
+    return stale;
+  }
+
+  /**
+   * Rewrites the file so it only holds the decisions that are still unfinished. Runs once every
+   * record appended before it is flushed, so a commit still pending then is carried over if
+   * its record made it to disk, and otherwise was either lost or lands in the new file.
+   */
+  void compact() {
+    this.log.rewrite(() -> {
+      Set<UUID> unfinished = new HashSet<>(this.unfinishedCommits.keySet());
+      synchronized (this.pendingCommits) {
+        this.pendingCommits.forEach((requestID, durable) -> {
+          if (durable.isDone() && !durable.isCompletedExceptionally()) {
+            unfinished.add(requestID);
+          }
+        });
+      }
+      List<WriteAheadLog.Record> records = new ArrayList<>();
+      for (UUID requestID : unfinished) {
+        records.add(new WriteAheadLog.Record(WriteAheadLog.COMMIT, requestID,
+            Collections.emptyList()));
+      }
+      return records;
+    });
+  }
+}
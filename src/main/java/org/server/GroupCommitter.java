@@ -0,0 +1,143 @@
+package org.server;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gathers requests that arrive close together and runs them through a single prepare/commit
+ * round. A batch closes once it holds the maximum number of requests, or once the window has
+ * passed since its first request; with a window of zero it takes whatever queued up while the
+ * previous round was running. Every caller still gets the outcome of its own request: a batch
+ * that aborts because of its requests, such as a lock conflict, is split in halves that run
+ * again one after the other, down to single requests, so only the requests that caused the
+ * abort fail. A batch that aborts because a participant is slow or down, or the coordinator
+ * turned it away, fails as a whole, as every half would only wait for the same failure.
+ */
+class GroupCommitter {
+
+  // Runs one 2PC round for all operations of a batch, returning one result per operation.
+  interface BatchRound {
+    TransactionResult run(UUID transactionID, List<Operation> operations);
+  }
+
+  private static class PendingRequest {
+    final UUID requestID;
+    final List<Operation> operations;
+    final CompletableFuture<TransactionResult> result = new CompletableFuture<>();
+
+    PendingRequest(UUID requestID, List<Operation> operations) {
+      this.requestID = requestID;
+      this.operations = operations;
+    }
+  }
+
+  // The abort reasons a smaller batch may not run into.
+  private static final Set<AbortReason> REQUEST_REASONS = EnumSet.of(AbortReason.LOCK_TIMEOUT,
+      AbortReason.INVALID_OPERATION, AbortReason.VOTED_NO, AbortReason.TOO_MANY_PARTICIPANTS);
+
+  private final BlockingQueue<PendingRequest> pendingRequests = new LinkedBlockingQueue<>();
+  private final BatchRound batchRound;
+  private final long windowMillis;
+  private final int maxBatchSize;
+
+  GroupCommitter(BatchRound batchRound, long windowMillis, int maxBatchSize,
+      int concurrentRounds) {
+    this.batchRound = batchRound;
+    this.windowMillis = windowMillis;
+    this.maxBatchSize = Math.max(1, maxBatchSize);
+    for (int i = 0; i < Math.max(1, concurrentRounds); i++) {
+      Thread batcher = new Thread(this::runBatches, "group-commit-" + i);
+      batcher.setDaemon(true);
+      batcher.start();
+    }
+  }
+
+  CompletableFuture<TransactionResult> submit(UUID requestID, List<Operation> operations) {
+    PendingRequest request = new PendingRequest(requestID, operations);
+    this.pendingRequests.add(request);
+    return request.result;
+  }
+
+  private void runBatches() {
+    List<PendingRequest> batch = new ArrayList<>();
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        batch.add(this.pendingRequests.take());
+        collectBatch(batch);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+      runRound(batch);
+      batch.clear();
+    }
+  }
+
+  private void collectBatch(List<PendingRequest> batch) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.windowMillis);
+    while (batch.size() < this.maxBatchSize) {
+      PendingRequest next = this.pendingRequests.poll();
+      if (next == null) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          return;
+        }
+        next = this.pendingRequests.poll(remaining, TimeUnit.NANOSECONDS);
+        if (next == null) {
+          return;
+        }
+      }
+      batch.add(next);
+    }
+  }
+
+  private void runRound(List<PendingRequest> batch) {
+    // A batch of one keeps the caller's request ID as its transaction ID.
+    UUID transactionID = batch.size() == 1 ? batch.get(0).requestID : UUID.randomUUID();
+    List<Operation> operations = new ArrayList<>();
+    batch.forEach((request) -> operations.addAll(request.operations));
+    TransactionResult outcome;
+    try {
+      outcome = this.batchRound.run(transactionID, operations);
+    } catch (RuntimeException e) {
+      if (batch.size() == 1) {
+        batch.get(0).result.completeExceptionally(e);
+      } else {
+        split(batch);
+      }
+      return;
+    }
+    if (batch.size() > 1 && isCausedByRequests(outcome)) {
+      split(batch);
+      return;
+    }
+    int fromIndex = 0;
+    for (PendingRequest request : batch) {
+      int toIndex = fromIndex + request.operations.size();
+      request.result.complete(outcome.slice(request.requestID, fromIndex, toIndex));
+      fromIndex = toIndex;
+    }
+  }
+
+  // Halves keep the order of the requests, so later requests still see earlier writes.
+  private void split(List<PendingRequest> batch) {
+    int middle = batch.size() / 2;
+    runRound(new ArrayList<>(batch.subList(0, middle)));
+    runRound(new ArrayList<>(batch.subList(middle, batch.size())));
+  }
+
+  // A round that timed out, could not reach a participant, was turned away or could not log
+  // its decision would fail the same way for any of the requests.
+  private static boolean isCausedByRequests(TransactionResult outcome) {
+    return outcome.getStatus() == TransactionResult.Status.PREPARE_FAILED
+        && !outcome.getAbortReasons().isEmpty()
+        && REQUEST_REASONS.containsAll(outcome.getAbortReasons().values());
+  }
+}
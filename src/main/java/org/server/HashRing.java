@@ -0,0 +1,88 @@
+package org.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Consistent-hash ring over the server ports. Every server owns a number of virtual nodes
+ * spread around the ring, and a key is owned by the first replication-factor distinct servers
+ * found walking clockwise from the key's hash. The first owner is the key's primary.
+ * Adding a server only moves the keys that now fall on its virtual nodes.
+ */
+class HashRing {
+
+  static final int REPLICATION_FACTOR = Integer.getInteger("twopc.replicationFactor", 3);
+  static final int VIRTUAL_NODES = Integer.getInteger("twopc.ring.virtualNodes", 64);
+
+  private final long[] tokens;
+  private final int[] tokenOwners;
+  private final int replicationFactor;
+
+  HashRing(Collection<Integer> ports, int virtualNodes, int replicationFactor) {
+    List<Integer> nodes = new ArrayList<>(new TreeSet<>(ports));
+    long[][] ring = new long[nodes.size() * virtualNodes][];
+    int next = 0;
+    for (Integer port : nodes) {
+      for (int i = 0; i < virtualNodes; i++) {
+        ring[next++] = new long[] {hash(port + "#" + i), port};
+      }
+    }
+    Arrays.sort(ring, (a, b) -> Long.compare(a[0], b[0]));
+    this.tokens = new long[ring.length];
+    this.tokenOwners = new int[ring.length];
+    for (int i = 0; i < ring.length; i++) {
+      this.tokens[i] = ring[i][0];
+      this.tokenOwners[i] = (int) ring[i][1];
+    }
+    this.replicationFactor = Math.max(1, Math.min(replicationFactor, nodes.size()));
+  }
+
+  // Uses the replication factor and virtual node count configured for this process.
+  static HashRing of(Collection<Integer> ports) {
+    return new HashRing(ports, VIRTUAL_NODES, REPLICATION_FACTOR);
+  }
+
+  // The servers that hold the key, primary first.
+  List<Integer> ownersOf(String key) {
+    List<Integer> owners = new ArrayList<>(this.replicationFactor);
+    int token = partitionOf(key);
+    for (int i = 0; i < this.tokens.length && owners.size() < this.replicationFactor; i++) {
+      Integer port = this.tokenOwners[(token + i) % this.tokens.length];
+      if (!owners.contains(port)) {
+        owners.add(port);
+      }
+    }
+    return owners;
+  }
+
+  boolean isOwner(Integer port, String key) {
+    return ownersOf(key).contains(port);
+  }
+
+  // Index of the first virtual node at or after the key's hash.
+  int partitionOf(String key) {
+    int index = Arrays.binarySearch(this.tokens, hash(key));
+    if (index < 0) {
+      index = -index - 1;
+    }
+    return index == this.tokens.length ? 0 : index;
+  }
+
+  // FNV-1a over the characters, finished with the MurmurHash3 mixer to spread nearby keys.
+  static long hash(String key) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < key.length(); i++) {
+      hash ^= key.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
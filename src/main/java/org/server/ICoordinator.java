@@ -11,4 +11,7 @@ public interface ICoordinator extends IServer , Remote {
 
   // Called by servers after commit phase is dispatched.
   public void updateCommitResponses(Integer port, UUID requestID) throws RemoteException;
+
+  // The largest timestamp at or below which every commit has been applied everywhere.
+  public long getStableTimestamp() throws RemoteException;
 }
@@ -0,0 +1,13 @@
+package org.server;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Remote read of a process component's counters and latency histograms, answered by every
+ * server and by the coordinator. The same values are registered as JMX MBeans.
+ */
+public interface IMetrics extends Remote {
+
+  public MetricsSnapshot getMetrics() throws RemoteException;
+}
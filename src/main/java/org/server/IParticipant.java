@@ -0,0 +1,50 @@
+package org.server;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Protocol variant of IServer in which prepare and commit return the participant's vote
+ * directly, instead of calling the coordinator back through ICoordinator.
+ */
+public interface IParticipant extends IServer {
+
+  // A transaction may carry several operations when the coordinator batches requests.
+  public Vote prepareVote(UUID requestID, List<Operation> operations) throws RemoteException;
+
+  public Vote commitVote(UUID requestID, List<Operation> operations) throws RemoteException;
+
+  // The coordinator sends prepares and commits in the compact wire form of the transaction.
+  public Vote prepareVote(TransactionMessage transaction) throws RemoteException;
+
+  public Vote commitVote(TransactionMessage transaction) throws RemoteException;
+
+  // Releases whatever the transaction holds; also sent to participants that never prepared it.
+  public void abort(UUID requestID) throws RemoteException;
+
+  // Every commit up to the timestamp has been applied by all of its participants.
+  public void advanceStableTimestamp(long timestamp) throws RemoteException;
+
+  // Transactions this participant has prepared and not yet seen a decision for.
+  public List<UUID> getPreparedTransactions() throws RemoteException;
+
+  // Asked by a peer that is prepared and cannot reach the coordinator. A server the peer knows
+  // to write in the transaction, and which has not prepared it, refuses to from then on.
+  public TransactionStatus queryTransaction(UUID requestID, boolean isParticipant,
+      long preparedAtMillis) throws RemoteException;
+
+  // Anti-entropy, see AntiEntropy; the peer is the server asking.
+  public long[] getMerkleHashes(Integer peer, int[] nodes) throws RemoteException;
+
+  public List<KeyVersion> compareRanges(Integer peer, int[] leaves, Map<String, Long> digests)
+      throws RemoteException;
+
+  public void applyVersions(List<KeyVersion> versions) throws RemoteException;
+
+  // The versions at the snapshot of the cursor of the next keys this server holds, at most a
+  // page of them and in order, tombstones included so the newest version wins across replicas.
+  public List<KeyVersion> scanReplica(ScanCursor cursor) throws RemoteException, NotBoundException;
+}
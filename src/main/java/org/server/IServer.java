@@ -1,8 +1,8 @@
 package org.server;
 
 import java.rmi.NotBoundException;
-import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
 
@@ -11,7 +11,7 @@ import java.util.UUID;
  * Either the README.md or in Coordinator.java
  * Running the coordinator will spin up the 5 servers.
  */
-public interface IServer extends Remote {
+public interface IServer extends IMetrics {
 
   public String sayHello() throws RemoteException;
 
@@ -20,7 +20,24 @@ public interface IServer extends Remote {
   public void setOtherServers(Set<Integer> otherServers) throws RemoteException;
 
   public String handleRequest(UUID requestID, String operation, String key, String value) throws RemoteException, NotBoundException;
+
+  // Runs an ordered list of GET, PUT and DELETE operations as a single atomic transaction.
+  public TransactionResult handleTransaction(UUID requestID, List<Operation> operations) throws RemoteException, NotBoundException;
+
+  // Same as above, with the transaction in its compact wire form.
+  public TransactionResult handleTransaction(TransactionMessage transaction) throws RemoteException, NotBoundException;
+
+  // Reads the keys as of the timestamp without taking any locks, or as of the latest stable
+  // timestamp this server knows if it is 0; the result carries the timestamp used, so further
+  // reads at it see the same snapshot on any server.
+  public TransactionResult readSnapshot(UUID requestID, List<Operation> reads, long timestamp) throws RemoteException, NotBoundException;
+
+  // Reads the next page of a SCAN or PREFIX over the keys of every server, see ScanCursor.
+  public ScanPage scan(UUID requestID, ScanCursor cursor) throws RemoteException, NotBoundException;
+
   public String prepare (UUID requestID, String operation, String key, String value) throws RemoteException, NotBoundException ;
 
-  public String commit (UUID requestID, String operation, String key, String value) throws RemoteException, NotBoundException ;
+  // Applies at the coordinator's commit timestamp, so every replica stamps the write alike;
+  // 0 lets the server pick one.
+  public String commit (UUID requestID, String operation, String key, String value, long commitTimestamp) throws RemoteException, NotBoundException ;
 }
@@ -0,0 +1,88 @@
+package org.server;
+
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Multi-version key value store of a server. Every write is stamped with the commit timestamp
+ * of the transaction that made it and a DELETE writes a tombstone; reads at a timestamp see the
+ * newest version no later than it, until collectGarbage drops the versions no allowed snapshot
+ * can see. Every change of a key's newest version is reported to the head listeners.
+ * Selected with -Dtwopc.store: heap (default) keeps everything in VersionedStore, offheap and
+ * mapped keep each key's newest version outside the Java heap in an OffHeapStore. Each engine
+ * keeps its keys in order for scans as suits it, see keysFrom.
+ */
+interface KeyValueStore {
+
+  // Told the digest of a key's newest version before and after it changed, 0 for none.
+  interface HeadListener {
+    void headChanged(String key, long oldDigest, long newDigest);
+  }
+
+  void addHeadListener(HeadListener headListener);
+
+  // The newest value of the key, or null if it is absent or deleted.
+  String get(String key);
+
+  // The value the key had at the timestamp, or null if it was absent or deleted then.
+  String getAt(String key, long timestamp);
+
+  // The version the key had at the timestamp, a tombstone if it was deleted then, or null if it
+  // had none.
+  KeyVersion versionAt(String key, long timestamp);
+
+  // Returns the value replaced, like Map.put.
+  String put(String key, String value, long timestamp);
+
+  // Returns the value deleted, like Map.remove.
+  String remove(String key, long timestamp);
+
+  // The newest version of the key, a tombstone if it is deleted, or null if there is none.
+  KeyVersion headOf(String key);
+
+  // The newest version of every key that passes the filter, tombstones included.
+  List<KeyVersion> heads(Predicate<String> keys);
+
+  /**
+   * Installs a version copied from another replica if it beats the newest one here, see
+   * KeyVersion.beats. Returns whether it did.
+   */
+  boolean repair(KeyVersion version);
+
+  // Every key from the start on, or after it if not inclusive, in String order, tombstones
+  // included, for SCAN and PREFIX. Weakly consistent, like the concurrent collections.
+  Iterator<String> keysFrom(String start, boolean inclusive);
+
+  // The number of keys whose newest version is not a tombstone.
+  int size();
+
+  /**
+   * Drops every version that no read at the horizon or later can see: for each key, everything
+   * older than its newest version at the horizon, and the key itself if that version is its
+   * newest and is a tombstone. Returns the number of versions dropped.
+   */
+  int collectGarbage(long horizon);
+
+  // The newest live value of every key as a map, for snapshots. Putting into it loads a base
+  // version that every read sees, as history before a restart is not kept.
+  Map<String, String> latest();
+
+  // The store engine chosen from the system property; mapped segments are kept in the directory.
+  static KeyValueStore create(Path directory) {
+    String engine = System.getProperty("twopc.store", "heap");
+    switch (engine.toLowerCase()) {
+      case "heap":
+        return new VersionedStore();
+      case "offheap":
+        return new OffHeapStore(null);
+      case "mapped":
+        return new OffHeapStore(directory);
+      default:
+        throw new IllegalArgumentException(String.format(
+            "Unknown store engine %s, expected heap, offheap or mapped.", engine));
+    }
+  }
+}
@@ -0,0 +1,78 @@
+package org.server;
+
+import java.io.Serializable;
+
+/**
+ * The newest version of a key as replicas exchange it during anti-entropy: its value, null for a
+ * tombstone, and the commit timestamp it was written at. A replica without any version of the
+ * key sends it with a timestamp of -1.
+ */
+public class KeyVersion implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final long TOMBSTONE = 0x9e3779b97f4a7c15L;
+
+  private final String key;
+  private final String value;
+  private final long timestamp;
+
+  public KeyVersion(String key, String value, long timestamp) {
+    this.key = key;
+    this.value = value;
+    this.timestamp = timestamp;
+  }
+
+  static KeyVersion absent(String key) {
+    return new KeyVersion(key, null, -1);
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public String getValue() {
+    return value;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public boolean isPresent() {
+    return timestamp >= 0;
+  }
+
+  long digest() {
+    return isPresent() ? digestOf(key, value, timestamp) : 0;
+  }
+
+  // The newer version wins; of two written at the same timestamp, as base versions loaded after
+  // a restart are, the larger digest wins, so every replica settles on the same one.
+  boolean beats(KeyVersion other) {
+    if (this.timestamp != other.timestamp) {
+      return this.timestamp > other.timestamp;
+    }
+    return digest() > other.digest();
+  }
+
+  static long digestOf(String key, String value, long timestamp) {
+    long digest = mix(HashRing.hash(key) ^ mix(timestamp));
+    return mix(digest ^ (value == null ? TOMBSTONE : HashRing.hash(value)));
+  }
+
+  // The MurmurHash3 finalizer.
+  private static long mix(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  @Override
+  public String toString() {
+    return isPresent() ? String.format("%s=%s@%s", key, value, timestamp) : key + " absent";
+  }
+}
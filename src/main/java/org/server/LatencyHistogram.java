@@ -0,0 +1,103 @@
+package org.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent histogram of durations in nanoseconds with log-spaced buckets.
+ * Values below 16 get a bucket each; above that every power of two is split into 16 buckets,
+ * so a reported percentile is at most 1/16 above the true value, from nanoseconds up to the
+ * largest long, in under a thousand counters. Each counter is a LongAdder, so recording from
+ * many threads at once does not contend.
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private final LongAdder[] buckets = new LongAdder[BUCKETS];
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  public LatencyHistogram() {
+    for (int i = 0; i < BUCKETS; i++) {
+      this.buckets[i] = new LongAdder();
+    }
+  }
+
+  public void record(long nanos) {
+    long value = Math.max(0, nanos);
+    this.buckets[bucketOf(value)].increment();
+    this.count.increment();
+    this.sum.add(value);
+    long currentMax = this.max.get();
+    while (value > currentMax && !this.max.compareAndSet(currentMax, value)) {
+      currentMax = this.max.get();
+    }
+  }
+
+  public long getCount() {
+    return this.count.sum();
+  }
+
+  public long getMax() {
+    return this.max.get();
+  }
+
+  public double getMean() {
+    long count = getCount();
+    return count == 0 ? 0 : (double) this.sum.sum() / count;
+  }
+
+  // The upper bound of the bucket holding the given percentile, e.g. 99.9; 0 when empty.
+  public long getPercentile(double percentile) {
+    long[] counts = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = this.buckets[i].sum();
+      total += counts[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(upperBoundOf(i), getMax());
+      }
+    }
+    return getMax();
+  }
+
+  public void reset() {
+    for (LongAdder bucket : this.buckets) {
+      bucket.reset();
+    }
+    this.count.reset();
+    this.sum.reset();
+    this.max.set(0);
+  }
+
+  private static int bucketOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  private static long upperBoundOf(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    long width = 1L << (exponent - SUB_BUCKET_BITS);
+    long lowerBound = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+    return lowerBound + (width - 1);
+  }
+}
@@ -0,0 +1,208 @@
+package org.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-key lock table for the participants, owned by transactions rather than threads, since the
+ * prepare and the commit of a transaction arrive on different RMI threads.
+ * Keys hash onto a fixed number of stripes, each guarding its own part of the table, so
+ * transactions on different keys do not contend. Waiters queue per key in arrival order and
+ * give up after a timeout, which also breaks deadlocks between transactions that lock the same
+ * keys on different servers in a different order, or as soon as their transaction is cancelled.
+ */
+class LockManager {
+
+  private static final int STRIPES = 64;
+
+  private static class KeyLock {
+    UUID exclusiveOwner;
+    final Set<UUID> sharedOwners = new HashSet<>(2);
+    final ArrayDeque<LockRequest> waiters = new ArrayDeque<>();
+
+    boolean isFree() {
+      return exclusiveOwner == null && sharedOwners.isEmpty() && waiters.isEmpty();
+    }
+  }
+
+  private static class LockRequest {
+    final UUID transactionID;
+    final String key;
+    final boolean exclusive;
+    // Guarded by the stripe of the key.
+    boolean cancelled;
+
+    LockRequest(UUID transactionID, String key, boolean exclusive) {
+      this.transactionID = transactionID;
+      this.key = key;
+      this.exclusive = exclusive;
+    }
+  }
+
+  private final Object[] stripes = new Object[STRIPES];
+  private final List<Map<String, KeyLock>> tables = new ArrayList<>(STRIPES);
+  // The request each transaction is waiting on; keys are locked one at a time.
+  private final Map<UUID, LockRequest> waiting = new ConcurrentHashMap<>();
+
+  LockManager() {
+    for (int i = 0; i < STRIPES; i++) {
+      this.stripes[i] = new Object();
+      this.tables.add(new HashMap<>());
+    }
+  }
+
+  /**
+   * Locks every key for the transaction, true meaning exclusive, or none of them.
+   * Keys are taken in sorted order so two transactions on the same server cannot deadlock.
+   * Returns false if any lock could not be granted before the timeout.
+   */
+  boolean acquireAll(UUID transactionID, SortedMap<String, Boolean> keys, long timeout,
+      TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    List<String> acquired = new ArrayList<>(keys.size());
+    try {
+      for (Map.Entry<String, Boolean> key : keys.entrySet()) {
+        if (!acquire(transactionID, key.getKey(), key.getValue(), deadline)) {
+          releaseAll(transactionID, acquired);
+          return false;
+        }
+        acquired.add(key.getKey());
+      }
+      return true;
+    } catch (InterruptedException e) {
+      releaseAll(transactionID, acquired);
+      throw e;
+    }
+  }
+
+  // Makes the transaction give up the lock it is waiting for, if any, as when it is aborted
+  // while its prepare is still queued behind another transaction.
+  void cancel(UUID transactionID) {
+    LockRequest request = this.waiting.get(transactionID);
+    if (request == null) {
+      return;
+    }
+    Object monitor = this.stripes[stripeOf(request.key)];
+    synchronized (monitor) {
+      request.cancelled = true;
+      monitor.notifyAll();
+    }
+  }
+
+  void releaseAll(UUID transactionID, Iterable<String> keys) {
+    for (String key : keys) {
+      release(transactionID, key);
+    }
+  }
+
+  private boolean acquire(UUID transactionID, String key, boolean exclusive, long deadline)
+      throws InterruptedException {
+    int stripe = stripeOf(key);
+    Object monitor = this.stripes[stripe];
+    Map<String, KeyLock> table = this.tables.get(stripe);
+    synchronized (monitor) {
+      KeyLock lock = table.computeIfAbsent(key, (k) -> new KeyLock());
+      if (holds(lock, transactionID, exclusive)) {
+        return true;
+      }
+      LockRequest request = new LockRequest(transactionID, key, exclusive);
+      lock.waiters.addLast(request);
+      this.waiting.put(transactionID, request);
+      try {
+        while (!(lock.waiters.peekFirst() == request && canGrant(lock, transactionID, exclusive))) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0 || request.cancelled) {
+            return false;
+          }
+          TimeUnit.NANOSECONDS.timedWait(monitor, remaining);
+        }
+        lock.waiters.removeFirst();
+        grant(lock, transactionID, exclusive);
+        this.waiting.remove(transactionID, request);
+        request = null;
+        // Shared waiters queued right behind this one may be granted too.
+        monitor.notifyAll();
+        return true;
+      } finally {
+        if (request != null) {
+          this.waiting.remove(transactionID, request);
+          lock.waiters.remove(request);
+          if (lock.isFree()) {
+            table.remove(key);
+          }
+          monitor.notifyAll();
+        }
+      }
+    }
+  }
+
+  private void release(UUID transactionID, String key) {
+    int stripe = stripeOf(key);
+    Object monitor = this.stripes[stripe];
+    Map<String, KeyLock> table = this.tables.get(stripe);
+    synchronized (monitor) {
+      KeyLock lock = table.get(key);
+      if (lock == null) {
+        return;
+      }
+      if (transactionID.equals(lock.exclusiveOwner)) {
+        lock.exclusiveOwner = null;
+      }
+      lock.sharedOwners.remove(transactionID);
+      if (lock.isFree()) {
+        table.remove(key);
+      }
+      monitor.notifyAll();
+    }
+  }
+
+  // True if the transaction already holds the key in the requested mode or a stronger one.
+  private boolean holds(KeyLock lock, UUID transactionID, boolean exclusive) {
+    if (transactionID.equals(lock.exclusiveOwner)) {
+      return true;
+    }
+    return !exclusive && lock.sharedOwners.contains(transactionID);
+  }
+
+  private boolean canGrant(KeyLock lock, UUID transactionID, boolean exclusive) {
+    boolean noOtherExclusive =
+        lock.exclusiveOwner == null || lock.exclusiveOwner.equals(transactionID);
+    if (!exclusive) {
+      return noOtherExclusive;
+    }
+    if (!noOtherExclusive) {
+      return false;
+    }
+    Iterator<UUID> sharedOwners = lock.sharedOwners.iterator();
+    while (sharedOwners.hasNext()) {
+      if (!sharedOwners.next().equals(transactionID)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void grant(KeyLock lock, UUID transactionID, boolean exclusive) {
+    if (exclusive) {
+      lock.sharedOwners.remove(transactionID);
+      lock.exclusiveOwner = transactionID;
+    } else {
+      lock.sharedOwners.add(transactionID);
+    }
+  }
+
+  private static int stripeOf(String key) {
+    int hash = key.hashCode();
+    return ((hash ^ (hash >>> 16)) & 0x7fffffff) % STRIPES;
+  }
+}
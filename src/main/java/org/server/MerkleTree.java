@@ -0,0 +1,48 @@
+package org.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hash tree over the 64-bit key hash space split into 2^depth equal ranges. Node 1 is the root,
+ * node i has the children 2i and 2i + 1, and the leaves are the nodes from 2^depth on. Every
+ * node holds the XOR of the digests of the keys below it, so adding, replacing or dropping a
+ * key's digest is a lock-free XOR along the path from its leaf to the root.
+ */
+class MerkleTree {
+
+  static final int ROOT = 1;
+
+  private final int depth;
+  private final AtomicLongArray nodes;
+
+  MerkleTree(int depth) {
+    if (depth < 1 || depth > 24) {
+      throw new IllegalArgumentException("Merkle tree depth must be in [1, 24]: " + depth);
+    }
+    this.depth = depth;
+    this.nodes = new AtomicLongArray(2 << depth);
+  }
+
+  int leafOf(long keyHash) {
+    return (1 << this.depth) + (int) (keyHash >>> (Long.SIZE - this.depth));
+  }
+
+  boolean isLeaf(int node) {
+    return node >= 1 << this.depth;
+  }
+
+  // Replaces the old digest of a key with the new one, either being 0 for no version.
+  void update(long keyHash, long oldDigest, long newDigest) {
+    long delta = oldDigest ^ newDigest;
+    if (delta == 0) {
+      return;
+    }
+    for (int node = leafOf(keyHash); node >= ROOT; node >>>= 1) {
+      this.nodes.accumulateAndGet(node, delta, (current, change) -> current ^ change);
+    }
+  }
+
+  long hashOf(int node) {
+    return this.nodes.get(node);
+  }
+}
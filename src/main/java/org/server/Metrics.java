@@ -0,0 +1,89 @@
+package org.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Named counters, gauges and latency histograms of one server or of the coordinator.
+ * Counters are LongAdders and histograms are LatencyHistograms, so recording is striped and
+ * allocates nothing; callers look each one up once and keep the reference.
+ */
+class Metrics implements MetricsMXBean {
+
+  private final Integer port;
+  private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+  private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+  private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+  Metrics(Integer port) {
+    this.port = port;
+  }
+
+  LongAdder counter(String name) {
+    return this.counters.computeIfAbsent(name, (key) -> new LongAdder());
+  }
+
+  void gauge(String name, LongSupplier value) {
+    this.gauges.put(name, value);
+  }
+
+  LatencyHistogram histogram(String name) {
+    return this.histograms.computeIfAbsent(name, (key) -> new LatencyHistogram());
+  }
+
+  // Replaces whatever was registered under the same name, e.g. by an earlier instance.
+  void register(String type) {
+    MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    try {
+      ObjectName name = new ObjectName(
+          String.format("org.server:type=%s,port=%s", type, this.port));
+      if (mbeanServer.isRegistered(name)) {
+        mbeanServer.unregisterMBean(name);
+      }
+      mbeanServer.registerMBean(this, name);
+    } catch (JMException e) {
+      System.err.println(String.format("Unable to register the metrics of port %s: %s",
+          this.port, e));
+    }
+  }
+
+  MetricsSnapshot snapshot() {
+    Map<String, MetricsSnapshot.Latency> latencies = new LinkedHashMap<>();
+    this.histograms.forEach((name, histogram) ->
+        latencies.put(name, new MetricsSnapshot.Latency(histogram)));
+    return new MetricsSnapshot(this.port, getCounters(), latencies);
+  }
+
+  @Override
+  public Map<String, Long> getCounters() {
+    Map<String, Long> values = new LinkedHashMap<>();
+    this.counters.forEach((name, counter) -> values.put(name, counter.sum()));
+    this.gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+    return values;
+  }
+
+  @Override
+  public Map<String, Long> getLatenciesMicros() {
+    Map<String, Long> values = new LinkedHashMap<>();
+    this.histograms.forEach((name, histogram) -> {
+      values.put(name + ".count", histogram.getCount());
+      values.put(name + ".p50", micros(histogram.getPercentile(50)));
+      values.put(name + ".p99", micros(histogram.getPercentile(99)));
+      values.put(name + ".p999", micros(histogram.getPercentile(99.9)));
+      values.put(name + ".max", micros(histogram.getMax()));
+    });
+    return values;
+  }
+
+  private static long micros(long nanos) {
+    return TimeUnit.NANOSECONDS.toMicros(nanos);
+  }
+}
@@ -0,0 +1,14 @@
+package org.server;
+
+import java.util.Map;
+
+/**
+ * JMX view of a Metrics instance, registered as org.server:type=Server or type=Coordinator
+ * with the port. Latencies are flattened to entries such as preparePhase.p99 in microseconds.
+ */
+public interface MetricsMXBean {
+
+  Map<String, Long> getCounters();
+
+  Map<String, Long> getLatenciesMicros();
+}
@@ -0,0 +1,92 @@
+package org.server;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point-in-time copy of the metrics of one server or of the coordinator.
+ * Counters include the gauges, such as the store size; latencies are summarized per histogram.
+ */
+public class MetricsSnapshot implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  // Percentiles of one latency histogram, in nanoseconds.
+  public static class Latency implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long count;
+    private final long p50;
+    private final long p99;
+    private final long p999;
+    private final long max;
+
+    Latency(LatencyHistogram histogram) {
+      this.count = histogram.getCount();
+      this.p50 = histogram.getPercentile(50);
+      this.p99 = histogram.getPercentile(99);
+      this.p999 = histogram.getPercentile(99.9);
+      this.max = histogram.getMax();
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getP50() {
+      return p50;
+    }
+
+    public long getP99() {
+      return p99;
+    }
+
+    public long getP999() {
+      return p999;
+    }
+
+    public long getMax() {
+      return max;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("count %s p50 %s us p99 %s us p999 %s us max %s us", count,
+          TimeUnit.NANOSECONDS.toMicros(p50), TimeUnit.NANOSECONDS.toMicros(p99),
+          TimeUnit.NANOSECONDS.toMicros(p999), TimeUnit.NANOSECONDS.toMicros(max));
+    }
+  }
+
+  private final Integer port;
+  private final Map<String, Long> counters;
+  private final Map<String, Latency> latencies;
+
+  MetricsSnapshot(Integer port, Map<String, Long> counters, Map<String, Latency> latencies) {
+    this.port = port;
+    this.counters = new TreeMap<>(counters);
+    this.latencies = new TreeMap<>(latencies);
+  }
+
+  public Integer getPort() {
+    return port;
+  }
+
+  public Map<String, Long> getCounters() {
+    return counters;
+  }
+
+  public Map<String, Latency> getLatencies() {
+    return latencies;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder text = new StringBuilder(String.format("Metrics of port %s", port));
+    counters.forEach((name, value) -> text.append(String.format("\n  %s = %s", name, value)));
+    latencies.forEach((name, value) -> text.append(String.format("\n  %s: %s", name, value)));
+    return text.toString();
+  }
+}
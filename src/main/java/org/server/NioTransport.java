@@ -0,0 +1,547 @@
+package org.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.MarshalException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.UnmarshalException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Carries the remote interfaces over plain sockets instead of RMI.
+ * Every call is sent as a frame [int length][long correlation ID][payload] on a single
+ * connection per peer, so any number of calls from different threads are in flight on it at
+ * once and their replies come back in whatever order they finish, matched by correlation ID.
+ * A request payload holds the binding name, a hash of the method signature and the arguments;
+ * a reply holds the return value or the exception thrown. Each listening port is served by one
+ * selector thread, and calls are run on a pool of worker threads.
+ */
+class NioTransport implements Transport {
+
+  private static final int FRAME_HEADER_BYTES = 4 + 8;
+  private static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+  private static final int READ_BUFFER_BYTES = 64 * 1024;
+  // Method hash of the call that checks whether a name is bound.
+  private static final long LOOKUP = 0L;
+
+  private final Map<Integer, Listener> listeners = new ConcurrentHashMap<>();
+  private final Map<String, Connection> connections = new ConcurrentHashMap<>();
+  private final Map<Class<?>, Map<Long, Method>> remoteMethods = new ConcurrentHashMap<>();
+  // Calls block on locks and on other servers, so the pool grows with the calls in flight.
+  private final ExecutorService workers = Executors.newCachedThreadPool((runnable) -> {
+    Thread thread = new Thread(runnable, "nio-transport-worker");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  @Override
+  public synchronized void export(Integer port, String bindingName, Remote object)
+      throws IOException {
+    Listener listener = this.listeners.get(port);
+    if (listener == null) {
+      listener = new Listener(port);
+      this.listeners.put(port, listener);
+    }
+    if (listener.bindings.putIfAbsent(bindingName, object) != null) {
+      throw new IOException(String.format("%s is already bound on port %s", bindingName, port));
+    }
+  }
+
+  @Override
+  public <T extends Remote> T lookup(String host, Integer port, String bindingName,
+      Class<T> type) throws RemoteException, NotBoundException {
+    Object isBound;
+    try {
+      isBound = connect(host, port).call(bindingName, LOOKUP, null);
+    } catch (RemoteException e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new RemoteException("Lookup of " + bindingName + " failed", e);
+    }
+    if (!Boolean.TRUE.equals(isBound)) {
+      throw new NotBoundException(bindingName);
+    }
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+        (proxy, method, args) -> invoke(proxy, host, port, bindingName, method, args)));
+  }
+
+  private Object invoke(Object proxy, String host, Integer port, String bindingName,
+      Method method, Object[] args) throws Throwable {
+    if (method.getDeclaringClass() == Object.class) {
+      return invokeLocally(proxy, String.format("%s@%s:%s", bindingName, host, port), method,
+          args);
+    }
+    Object result;
+    try {
+      result = connect(host, port).call(bindingName, methodHash(method), args);
+    } catch (Throwable e) {
+      throw rethrowable(method, e);
+    }
+    return result;
+  }
+
+  // Object methods are answered by the stub itself, as with RMI stubs.
+  private static Object invokeLocally(Object proxy, String target, Method method,
+      Object[] args) {
+    switch (method.getName()) {
+      case "equals":
+        return proxy == args[0];
+      case "hashCode":
+        return System.identityHashCode(proxy);
+      default:
+        return "NioStub[" + target + "]";
+    }
+  }
+
+  // Exceptions the interface does not declare reach the caller wrapped in a RemoteException.
+  private static Throwable rethrowable(Method method, Throwable e) {
+    if (e instanceof RuntimeException || e instanceof Error) {
+      return e;
+    }
+    for (Class<?> declared : method.getExceptionTypes()) {
+      if (declared.isInstance(e)) {
+        return e;
+      }
+    }
+    return new RemoteException("Remote call failed", e);
+  }
+
+  private Connection connect(String host, Integer port) throws RemoteException {
+    String address = host + ":" + port;
+    Connection connection = this.connections.get(address);
+    if (connection != null && !connection.closed) {
+      return connection;
+    }
+    synchronized (this.connections) {
+      connection = this.connections.get(address);
+      if (connection == null || connection.closed) {
+        try {
+          connection = new Connection(address, new InetSocketAddress(host, port));
+        } catch (IOException e) {
+          throw new ConnectException("Unable to connect to " + address, e);
+        }
+        this.connections.put(address, connection);
+      }
+      return connection;
+    }
+  }
+
+  // Methods of every remote interface the object implements, keyed by signature hash.
+  private Map<Long, Method> remoteMethodsOf(Class<?> type) {
+    return this.remoteMethods.computeIfAbsent(type, (key) -> {
+      Map<Long, Method> methods = new HashMap<>();
+      Deque<Class<?>> types = new ArrayDeque<>();
+      types.add(key);
+      while (!types.isEmpty()) {
+        Class<?> next = types.poll();
+        if (next.isInterface() && Remote.class.isAssignableFrom(next)) {
+          for (Method method : next.getMethods()) {
+            methods.put(methodHash(method), method);
+          }
+        }
+        if (next.getSuperclass() != null) {
+          types.add(next.getSuperclass());
+        }
+        for (Class<?> implemented : next.getInterfaces()) {
+          types.add(implemented);
+        }
+      }
+      return methods;
+    });
+  }
+
+  private static long methodHash(Method method) {
+    StringBuilder signature = new StringBuilder(method.getName()).append('(');
+    for (Class<?> parameter : method.getParameterTypes()) {
+      signature.append(parameter.getName()).append(',');
+    }
+    long hash = HashRing.hash(signature.append(')').toString());
+    return hash == LOOKUP ? 1L : hash;
+  }
+
+  private interface PayloadWriter {
+    void write(ObjectOutputStream out) throws IOException;
+  }
+
+  private static ByteBuffer frame(long correlationID, PayloadWriter payloadWriter)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    bytes.write(new byte[FRAME_HEADER_BYTES]);
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      payloadWriter.write(out);
+    }
+    ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+    frame.putInt(0, frame.capacity() - 4).putLong(4, correlationID);
+    return frame;
+  }
+
+  /**
+   * The client side of the connection to one peer, shared by every stub pointing at it.
+   * Callers write their frames under a lock and wait on a future that a reader thread
+   * completes when the reply with their correlation ID arrives.
+   */
+  private class Connection {
+    final String address;
+    final SocketChannel channel;
+    final Object writeLock = new Object();
+    final Map<Long, CompletableFuture<byte[]>> pendingCalls = new ConcurrentHashMap<>();
+    final AtomicLong nextCorrelationID = new AtomicLong();
+    volatile boolean closed = false;
+
+    Connection(String address, InetSocketAddress peer) throws IOException {
+      this.address = address;
+      this.channel = SocketChannel.open(peer);
+      this.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      Thread reader = new Thread(this::readReplies, "nio-transport-" + address);
+      reader.setDaemon(true);
+      reader.start();
+    }
+
+    Object call(String bindingName, long methodHash, Object[] args) throws Throwable {
+      long correlationID = this.nextCorrelationID.incrementAndGet();
+      ByteBuffer request;
+      try {
+        request = frame(correlationID, (out) -> {
+          out.writeUTF(bindingName);
+          out.writeLong(methodHash);
+          out.writeObject(args);
+        });
+      } catch (IOException e) {
+        throw new MarshalException("Unable to send the arguments", e);
+      }
+      CompletableFuture<byte[]> reply = new CompletableFuture<>();
+      this.pendingCalls.put(correlationID, reply);
+      try {
+        synchronized (this.writeLock) {
+          while (request.hasRemaining()) {
+            this.channel.write(request);
+          }
+        }
+      } catch (IOException e) {
+        // An incomplete frame is never run, so the call may be repeated.
+        this.pendingCalls.remove(correlationID);
+        close(e);
+        throw new ConnectIOException("Unable to send to " + this.address, e);
+      }
+      if (this.closed) {
+        // The reader may have failed the pending calls before this one was added.
+        close(null);
+      }
+      byte[] payload;
+      try {
+        payload = reply.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        this.pendingCalls.remove(correlationID);
+        throw new RemoteException("Interrupted while waiting for " + this.address, e);
+      } catch (ExecutionException e) {
+        throw e.getCause();
+      }
+      boolean isThrown;
+      Object result;
+      try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload))) {
+        isThrown = in.readBoolean();
+        result = in.readObject();
+      } catch (IOException | ClassNotFoundException e) {
+        throw new UnmarshalException("Unable to read the reply from " + this.address, e);
+      }
+      // Thrown outside the try, so a RemoteException from the server is not taken for a
+      // reply that could not be read.
+      if (isThrown) {
+        throw (Throwable) result;
+      }
+      return result;
+    }
+
+    private void readReplies() {
+      ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_BYTES);
+      try {
+        while (true) {
+          header.clear();
+          readFully(header);
+          int length = header.getInt(0);
+          if (length < 8 || length > MAX_FRAME_BYTES) {
+            throw new IOException("Invalid frame length " + length);
+          }
+          ByteBuffer payload = ByteBuffer.allocate(length - 8);
+          readFully(payload);
+          CompletableFuture<byte[]> reply = this.pendingCalls.remove(header.getLong(4));
+          if (reply != null) {
+            reply.complete(payload.array());
+          }
+        }
+      } catch (IOException e) {
+        close(e);
+      }
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+      while (buffer.hasRemaining()) {
+        if (this.channel.read(buffer) < 0) {
+          throw new IOException("Connection closed by " + this.address);
+        }
+      }
+    }
+
+    // Calls still waiting may or may not have run, so they fail without being retried.
+    void close(IOException cause) {
+      this.closed = true;
+      connections.remove(this.address, this);
+      try {
+        this.channel.close();
+      } catch (IOException ignored) {
+        // Already broken.
+      }
+      Iterator<CompletableFuture<byte[]>> pending = this.pendingCalls.values().iterator();
+      while (pending.hasNext()) {
+        pending.next().completeExceptionally(
+            new UnmarshalException("Connection to " + this.address + " was lost", cause));
+        pending.remove();
+      }
+    }
+  }
+
+  /**
+   * Accepts connections on one port and reads their frames on a single selector thread.
+   * Replies are queued by the worker threads and written out by the selector thread.
+   */
+  private class Listener {
+    final Integer port;
+    final Map<String, Remote> bindings = new ConcurrentHashMap<>();
+    final Selector selector;
+    final Queue<ServerConnection> connectionsToFlush = new ConcurrentLinkedQueue<>();
+
+    Listener(Integer port) throws IOException {
+      this.port = port;
+      this.selector = Selector.open();
+      ServerSocketChannel server = ServerSocketChannel.open();
+      server.bind(new InetSocketAddress(port));
+      server.configureBlocking(false);
+      server.register(this.selector, SelectionKey.OP_ACCEPT);
+      // Not a daemon, so the process keeps serving after main returns, as with RMI.
+      new Thread(this::select, "nio-transport-listener-" + port).start();
+    }
+
+    private void select() {
+      while (true) {
+        try {
+          this.selector.select();
+          ServerConnection toFlush;
+          while ((toFlush = this.connectionsToFlush.poll()) != null) {
+            toFlush.flush();
+          }
+          Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
+          while (selectedKeys.hasNext()) {
+            SelectionKey key = selectedKeys.next();
+            selectedKeys.remove();
+            if (!key.isValid()) {
+              continue;
+            }
+            if (key.isAcceptable()) {
+              accept((ServerSocketChannel) key.channel());
+              continue;
+            }
+            ServerConnection connection = (ServerConnection) key.attachment();
+            if (key.isReadable()) {
+              connection.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+              connection.flush();
+            }
+          }
+        } catch (IOException | RuntimeException e) {
+          System.err.println(String.format("Listener on port %s failed: %s", this.port, e));
+        }
+      }
+    }
+
+    private void accept(ServerSocketChannel server) throws IOException {
+      SocketChannel channel = server.accept();
+      if (channel == null) {
+        return;
+      }
+      channel.configureBlocking(false);
+      channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      ServerConnection connection = new ServerConnection(this, channel);
+      connection.key = channel.register(this.selector, SelectionKey.OP_READ, connection);
+    }
+  }
+
+  // The server side of one connection; only the selector thread reads and writes the channel.
+  private class ServerConnection {
+    final Listener listener;
+    final SocketChannel channel;
+    SelectionKey key;
+    ByteBuffer input = ByteBuffer.allocate(READ_BUFFER_BYTES);
+    final Queue<ByteBuffer> output = new ConcurrentLinkedQueue<>();
+    final AtomicBoolean isFlushScheduled = new AtomicBoolean();
+
+    ServerConnection(Listener listener, SocketChannel channel) {
+      this.listener = listener;
+      this.channel = channel;
+    }
+
+    void read() {
+      try {
+        if (this.channel.read(this.input) < 0) {
+          close();
+          return;
+        }
+        this.input.flip();
+        while (this.input.remaining() >= FRAME_HEADER_BYTES) {
+          int length = this.input.getInt(this.input.position());
+          if (length < 8 || length > MAX_FRAME_BYTES) {
+            close();
+            return;
+          }
+          if (this.input.remaining() < 4 + length) {
+            break;
+          }
+          this.input.getInt();
+          long correlationID = this.input.getLong();
+          byte[] payload = new byte[length - 8];
+          this.input.get(payload);
+          workers.execute(() -> dispatch(correlationID, payload));
+        }
+        int nextFrameBytes = this.input.remaining() >= 4
+            ? 4 + this.input.getInt(this.input.position())
+            : 0;
+        if (nextFrameBytes > this.input.capacity()) {
+          ByteBuffer larger = ByteBuffer.allocate(nextFrameBytes);
+          larger.put(this.input);
+          this.input = larger;
+        } else {
+          this.input.compact();
+        }
+      } catch (IOException e) {
+        close();
+      }
+    }
+
+    private void dispatch(long correlationID, byte[] payload) {
+      boolean isThrown = false;
+      Object result;
+      try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload))) {
+        String bindingName = in.readUTF();
+        long methodHash = in.readLong();
+        Object[] args = (Object[]) in.readObject();
+        result = invokeBound(bindingName, methodHash, args);
+      } catch (InvocationTargetException e) {
+        isThrown = true;
+        result = e.getCause();
+      } catch (Exception e) {
+        isThrown = true;
+        result = e instanceof RemoteException ? e : new UnmarshalException("Bad request", e);
+      }
+      reply(correlationID, isThrown, result);
+    }
+
+    private Object invokeBound(String bindingName, long methodHash, Object[] args)
+        throws Exception {
+      Remote object = this.listener.bindings.get(bindingName);
+      if (methodHash == LOOKUP) {
+        return object != null;
+      }
+      if (object == null) {
+        throw new NoSuchObjectException(bindingName + " is not bound on " + this.listener.port);
+      }
+      Method method = remoteMethodsOf(object.getClass()).get(methodHash);
+      if (method == null) {
+        throw new UnmarshalException("Unknown method called on " + bindingName);
+      }
+      return method.invoke(object, args);
+    }
+
+    private void reply(long correlationID, boolean isThrown, Object result) {
+      ByteBuffer frame;
+      try {
+        frame = frame(correlationID, (out) -> {
+          out.writeBoolean(isThrown);
+          out.writeObject(result);
+        });
+      } catch (IOException e) {
+        try {
+          frame = frame(correlationID, (out) -> {
+            out.writeBoolean(true);
+            out.writeObject(new MarshalException("Unable to send the reply", e));
+          });
+        } catch (IOException unreachable) {
+          close();
+          return;
+        }
+      }
+      this.output.add(frame);
+      if (this.isFlushScheduled.compareAndSet(false, true)) {
+        this.listener.connectionsToFlush.add(this);
+        this.listener.selector.wakeup();
+      }
+    }
+
+    // Writes queued replies until the socket is full, then waits for it to become writable.
+    void flush() {
+      try {
+        while (true) {
+          ByteBuffer next;
+          while ((next = this.output.peek()) != null) {
+            this.channel.write(next);
+            if (next.hasRemaining()) {
+              this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+              return;
+            }
+            this.output.poll();
+          }
+          this.key.interestOps(SelectionKey.OP_READ);
+          this.isFlushScheduled.set(false);
+          // A reply queued after the last poll found the flush still scheduled.
+          if (this.output.isEmpty() || !this.isFlushScheduled.compareAndSet(false, true)) {
+            return;
+          }
+        }
+      } catch (IOException | RuntimeException e) {
+        close();
+      }
+    }
+
+    void close() {
+      if (this.key != null) {
+        this.key.cancel();
+      }
+      try {
+        this.channel.close();
+      } catch (IOException ignored) {
+        // Already broken.
+      }
+    }
+  }
+}
@@ -0,0 +1,763 @@
+package org.server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+/**
+ * Store engine that keeps the newest version of every key outside the Java heap, so a server
+ * can hold tens of millions of keys without them adding to the work of the garbage collector.
+ * Keys are split over segments by hash. Each segment is an open-addressing table with linear
+ * probing, whose slots hold [long key hash][long record offset + 1], over a log of records
+ * [int key length][int value length, -1 for a tombstone][long timestamp][key][value] in UTF-8.
+ * Both are direct buffers, or buffers mapped from files when a directory is given, so the OS
+ * can page cold records out. Readers share the lock of a segment and writers hold it alone, so
+ * writes to different segments run in parallel. A write appends a record and repoints its slot;
+ * a segment whose log is full copies its live records into a new one.
+ * The older versions that snapshots may still read stay on the heap until collectGarbage drops
+ * them, so only the keys written within the MVCC retention window cost heap objects.
+ * Keys are in hash order, so for scans every key is also kept in an ordered set on the heap,
+ * at the cost of a heap object per key. A store that is never scanned can drop it with
+ * -Dtwopc.store.orderedIndex=false; scans then find the next keys in String order by passes
+ * over every segment, each handing out the next KEYS_PER_PASS of them, so a page costs time
+ * in proportion to the store size.
+ */
+class OffHeapStore implements KeyValueStore {
+
+  static final int SEGMENTS = Integer.getInteger("twopc.store.segments", 64);
+  static final boolean ORDERED_INDEX =
+      Boolean.parseBoolean(System.getProperty("twopc.store.orderedIndex", "true"));
+
+  private static final int SLOT_BYTES = 8 + 8;
+  private static final int HEADER_BYTES = 4 + 4 + 8;
+  private static final int INITIAL_SLOTS = 1024;
+  private static final int INITIAL_LOG_BYTES = 64 * 1024;
+  // The largest table whose doubling still fits a buffer.
+  private static final int MAX_SLOTS = 1 << 26;
+  private static final int MAX_LOG_BYTES = Integer.MAX_VALUE - 8;
+  private static final int TOMBSTONE = -1;
+  private static final int KEYS_PER_PASS = 1024;
+
+  private static final class Version {
+    private final long timestamp;
+    // Null for a tombstone.
+    private final String value;
+    private Version older;
+
+    Version(long timestamp, String value, Version older) {
+      this.timestamp = timestamp;
+      this.value = value;
+      this.older = older;
+    }
+  }
+
+  // Null for direct buffers.
+  private final Path directory;
+  private final AtomicInteger mappedFiles = new AtomicInteger();
+  private final Segment[] segments;
+  // The versions each key had before its newest one, newest first; guarded by its segment.
+  private final Map<String, Version> olderVersions = new ConcurrentHashMap<>();
+  // Keys whose newest version is a tombstone, for collectGarbage to drop.
+  private final Set<String> tombstones = ConcurrentHashMap.newKeySet();
+  private final AtomicInteger liveKeys = new AtomicInteger();
+  private final Map<String, String> latest = new LatestView();
+  private final List<HeadListener> headListeners = new CopyOnWriteArrayList<>();
+  // Every key in the segments, in order, if ORDERED_INDEX is set; null otherwise.
+  private final NavigableSet<String> orderedKeys =
+      ORDERED_INDEX ? new ConcurrentSkipListSet<>() : null;
+  private final AtomicBoolean passesWarned = new AtomicBoolean();
+
+  OffHeapStore(Path directory) {
+    if (SEGMENTS < 1 || Integer.bitCount(SEGMENTS) != 1) {
+      throw new IllegalArgumentException(
+          "The number of store segments must be a power of two: " + SEGMENTS);
+    }
+    this.directory = directory;
+    this.segments = new Segment[SEGMENTS];
+    for (int i = 0; i < SEGMENTS; i++) {
+      this.segments[i] = new Segment();
+    }
+  }
+
+  @Override
+  public void addHeadListener(HeadListener headListener) {
+    this.headListeners.add(headListener);
+  }
+
+  @Override
+  public String get(String key) {
+    byte[] keyBytes = utf8(key);
+    long hash = HashRing.hash(key);
+    Segment segment = segmentOf(hash);
+    segment.lock.readLock().lock();
+    try {
+      int record = segment.recordOf(segment.find(hash, keyBytes));
+      return record < 0 ? null : segment.valueOf(record);
+    } finally {
+      segment.lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public String getAt(String key, long timestamp) {
+    KeyVersion version = versionAt(key, timestamp);
+    return version == null ? null : version.getValue();
+  }
+
+  @Override
+  public KeyVersion versionAt(String key, long timestamp) {
+    byte[] keyBytes = utf8(key);
+    long hash = HashRing.hash(key);
+    Segment segment = segmentOf(hash);
+    segment.lock.readLock().lock();
+    try {
+      int record = segment.recordOf(segment.find(hash, keyBytes));
+      if (record < 0) {
+        return null;
+      }
+      long headTimestamp = segment.timestampOf(record);
+      if (headTimestamp <= timestamp) {
+        return new KeyVersion(key, segment.valueOf(record), headTimestamp);
+      }
+      Version version = this.olderVersions.get(key);
+      while (version != null && version.timestamp > timestamp) {
+        version = version.older;
+      }
+      return version == null ? null : new KeyVersion(key, version.value, version.timestamp);
+    } finally {
+      segment.lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public String put(String key, String value, long timestamp) {
+    return write(key, value, timestamp);
+  }
+
+  @Override
+  public String remove(String key, long timestamp) {
+    return write(key, null, timestamp);
+  }
+
+  @Override
+  public KeyVersion headOf(String key) {
+    byte[] keyBytes = utf8(key);
+    long hash = HashRing.hash(key);
+    Segment segment = segmentOf(hash);
+    segment.lock.readLock().lock();
+    try {
+      int record = segment.recordOf(segment.find(hash, keyBytes));
+      return record < 0 ? null
+          : new KeyVersion(key, segment.valueOf(record), segment.timestampOf(record));
+    } finally {
+      segment.lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public List<KeyVersion> heads(Predicate<String> keys) {
+    List<KeyVersion> heads = new ArrayList<>();
+    for (Segment segment : this.segments) {
+      segment.lock.readLock().lock();
+      try {
+        for (int slot = 0; slot < segment.slotCount; slot++) {
+          int record = segment.recordOf(slot);
+          if (record < 0) {
+            continue;
+          }
+          String key = segment.keyOf(record);
+          if (keys.test(key)) {
+            heads.add(new KeyVersion(key, segment.valueOf(record), segment.timestampOf(record)));
+          }
+        }
+      } finally {
+        segment.lock.readLock().unlock();
+      }
+    }
+    return heads;
+  }
+
+  @Override
+  public boolean repair(KeyVersion version) {
+    String key = version.getKey();
+    byte[] keyBytes = utf8(key);
+    long hash = HashRing.hash(key);
+    Segment segment = segmentOf(hash);
+    KeyVersion current = null;
+    segment.lock.writeLock().lock();
+    try {
+      int record = segment.recordOf(segment.find(hash, keyBytes));
+      if (record >= 0) {
+        current = new KeyVersion(key, segment.valueOf(record), segment.timestampOf(record));
+        if (!version.beats(current)) {
+          return false;
+        }
+        if (current.getTimestamp() != version.getTimestamp()) {
+          keepOlder(key, current.getTimestamp(), current.getValue());
+        }
+      }
+      install(segment, hash, key, keyBytes, version.getValue(), version.getTimestamp());
+    } finally {
+      segment.lock.writeLock().unlock();
+    }
+    changed(key, current == null ? null : current.getValue(),
+        current == null ? 0 : current.digest(), version.getValue(), version.digest());
+    return true;
+  }
+
+  @Override
+  public Iterator<String> keysFrom(String start, boolean inclusive) {
+    if (this.orderedKeys != null) {
+      return this.orderedKeys.tailSet(start, inclusive).iterator();
+    }
+    if (this.passesWarned.compareAndSet(false, true)) {
+      System.err.println("Store has no ordered index (twopc.store.orderedIndex=false), so every"
+          + " page of a scan passes over all of its keys.");
+    }
+    return new KeyPassIterator(start, inclusive);
+  }
+
+  @Override
+  public int size() {
+    return this.liveKeys.get();
+  }
+
+  @Override
+  public int collectGarbage(long horizon) {
+    int dropped = 0;
+    for (String key : this.olderVersions.keySet()) {
+      dropped += collectGarbage(key, horizon);
+    }
+    for (String key : this.tombstones) {
+      dropped += collectGarbage(key, horizon);
+    }
+    return dropped;
+  }
+
+  @Override
+  public Map<String, String> latest() {
+    return this.latest;
+  }
+
+  private int collectGarbage(String key, long horizon) {
+    byte[] keyBytes = utf8(key);
+    long hash = HashRing.hash(key);
+    Segment segment = segmentOf(hash);
+    int dropped = 0;
+    long tombstoneDigest = 0;
+    segment.lock.writeLock().lock();
+    try {
+      int slot = segment.find(hash, keyBytes);
+      int record = segment.recordOf(slot);
+      long timestamp = record < 0 ? Long.MIN_VALUE : segment.timestampOf(record);
+      if (timestamp <= horizon) {
+        // No read at the horizon or later sees past the newest version.
+        dropped += countVersions(this.olderVersions.remove(key));
+        if (record >= 0 && segment.valueOf(record) == null) {
+          segment.delete(slot);
+          this.tombstones.remove(key);
+          tombstoneDigest = KeyVersion.digestOf(key, null, timestamp);
+          dropped++;
+        }
+      } else {
+        Version base = this.olderVersions.get(key);
+        while (base != null && base.timestamp > horizon) {
+          base = base.older;
+        }
+        if (base != null) {
+          dropped += countVersions(base.older);
+          base.older = null;
+        }
+      }
+    } finally {
+      segment.lock.writeLock().unlock();
+    }
+    if (tombstoneDigest != 0) {
+      headChanged(key, tombstoneDigest, 0);
+    }
+    return dropped;
+  }
+
+  private static int countVersions(Version version) {
+    int count = 0;
+    for (; version != null; version = version.older) {
+      count++;
+    }
+    return count;
+  }
+
+  private String write(String key, String value, long timestamp) {
+    byte[] keyBytes = utf8(key);
+    long hash = HashRing.hash(key);
+    Segment segment = segmentOf(hash);
+    String oldValue = null;
+    long oldDigest = 0;
+    segment.lock.writeLock().lock();
+    try {
+      int record = segment.recordOf(segment.find(hash, keyBytes));
+      if (record >= 0) {
+        long oldTimestamp = segment.timestampOf(record);
+        if (oldTimestamp > timestamp) {
+          // A later commit got here first, so this one only joins the history below it.
+          return insertOlder(key, value, timestamp);
+        }
+        oldValue = segment.valueOf(record);
+        oldDigest = KeyVersion.digestOf(key, oldValue, oldTimestamp);
+        // Operations of one transaction share its timestamp and the last one wins.
+        if (oldTimestamp < timestamp) {
+          keepOlder(key, oldTimestamp, oldValue);
+        }
+      }
+      install(segment, hash, key, keyBytes, value, timestamp);
+    } finally {
+      segment.lock.writeLock().unlock();
+    }
+    changed(key, oldValue, oldDigest, value, KeyVersion.digestOf(key, value, timestamp));
+    return oldValue;
+  }
+
+  // Called with the segment of the key locked for writing.
+  private void keepOlder(String key, long timestamp, String value) {
+    this.olderVersions.compute(key, (ignored, older) -> new Version(timestamp, value, older));
+  }
+
+  // Called with the segment of the key locked for writing. Returns the value the version
+  // replaces at its timestamp.
+  private String insertOlder(String key, String value, long timestamp) {
+    String[] replaced = new String[1];
+    this.olderVersions.compute(key, (ignored, newest) -> {
+      if (newest == null || newest.timestamp <= timestamp) {
+        replaced[0] = newest == null ? null : newest.value;
+        return new Version(timestamp, value,
+            newest != null && newest.timestamp == timestamp ? newest.older : newest);
+      }
+      Version newer = newest;
+      while (newer.older != null && newer.older.timestamp > timestamp) {
+        newer = newer.older;
+      }
+      Version older = newer.older;
+      replaced[0] = older == null ? null : older.value;
+      newer.older = new Version(timestamp, value,
+          older != null && older.timestamp == timestamp ? older.older : older);
+      return newest;
+    });
+    return replaced[0];
+  }
+
+  // Called with the segment of the key locked for writing.
+  private void install(Segment segment, long hash, String key, byte[] keyBytes, String value,
+      long timestamp) {
+    segment.write(hash, keyBytes, value == null ? null : utf8(value), timestamp);
+    if (value == null) {
+      this.tombstones.add(key);
+    } else {
+      this.tombstones.remove(key);
+    }
+  }
+
+  // Digests are 0 for no version.
+  private void changed(String key, String oldValue, long oldDigest, String newValue,
+      long newDigest) {
+    if (oldValue == null && newValue != null) {
+      this.liveKeys.incrementAndGet();
+    } else if (oldValue != null && newValue == null) {
+      this.liveKeys.decrementAndGet();
+    }
+    headChanged(key, oldDigest, newDigest);
+  }
+
+  private void headChanged(String key, long oldDigest, long newDigest) {
+    if (this.orderedKeys != null) {
+      if (newDigest != 0) {
+        this.orderedKeys.add(key);
+      } else {
+        // A write that brings the key back has stored it before it gets here, so the check
+        // after the removal cannot miss it.
+        this.orderedKeys.remove(key);
+        if (headOf(key) != null) {
+          this.orderedKeys.add(key);
+        }
+      }
+    }
+    for (HeadListener headListener : this.headListeners) {
+      headListener.headChanged(key, oldDigest, newDigest);
+    }
+  }
+
+  // Segments take the high half of the hash and slots the low one.
+  private Segment segmentOf(long hash) {
+    return this.segments[(int) (hash >>> 32) & (this.segments.length - 1)];
+  }
+
+  private static byte[] utf8(String text) {
+    return text.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private ByteBuffer allocate(int bytes) {
+    if (this.directory == null) {
+      return ByteBuffer.allocateDirect(bytes);
+    }
+    // The mapping outlives the file, which only backs the pages the OS evicts.
+    Path file = this.directory.resolve(
+        String.format("segment-%s.bin", this.mappedFiles.incrementAndGet()));
+    try {
+      Files.createDirectories(this.directory);
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+          StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+          StandardOpenOption.WRITE)) {
+        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+        try {
+          Files.delete(file);
+        } catch (IOException e) {
+          file.toFile().deleteOnExit();
+        }
+        return buffer;
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * One table and its log. Every method is called with the lock held, for writing if it
+   * changes anything. Buffers are only read and written at absolute offsets, so readers
+   * sharing the lock never disturb each other.
+   */
+  private final class Segment {
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private ByteBuffer slots = allocate(INITIAL_SLOTS * SLOT_BYTES);
+    private int slotCount = INITIAL_SLOTS;
+    private int keys = 0;
+    private ByteBuffer log = allocate(INITIAL_LOG_BYTES);
+    private int logEnd = 0;
+    // Bytes of the records that slots point at; the rest of the log is garbage.
+    private int liveBytes = 0;
+
+    // The slot holding the key, or the empty slot where it belongs.
+    int find(long hash, byte[] key) {
+      int mask = this.slotCount - 1;
+      for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+        int record = recordOf(slot);
+        if (record < 0 || (hashOf(slot) == hash && keyEquals(record, key))) {
+          return slot;
+        }
+      }
+    }
+
+    // The offset of the record in the slot, or -1 if it is empty.
+    int recordOf(int slot) {
+      return (int) this.slots.getLong(slot * SLOT_BYTES + 8) - 1;
+    }
+
+    long timestampOf(int record) {
+      return this.log.getLong(record + 8);
+    }
+
+    String keyOf(int record) {
+      return decode(record + HEADER_BYTES, this.log.getInt(record));
+    }
+
+    // Null for a tombstone.
+    String valueOf(int record) {
+      int valueLength = this.log.getInt(record + 4);
+      return valueLength == TOMBSTONE ? null
+          : decode(record + HEADER_BYTES + this.log.getInt(record), valueLength);
+    }
+
+    void write(long hash, byte[] key, byte[] value, long timestamp) {
+      int recordBytes = HEADER_BYTES + key.length + (value == null ? 0 : value.length);
+      reserve(recordBytes);
+      int slot = find(hash, key);
+      int old = recordOf(slot);
+      if (old >= 0) {
+        this.liveBytes -= lengthOf(old);
+      } else {
+        if (this.keys + 1 > this.slotCount / 4 * 3) {
+          grow();
+          slot = find(hash, key);
+        }
+        this.keys++;
+      }
+      int record = this.logEnd;
+      this.log.putInt(record, key.length);
+      this.log.putInt(record + 4, value == null ? TOMBSTONE : value.length);
+      this.log.putLong(record + 8, timestamp);
+      ByteBuffer target = this.log.duplicate();
+      target.position(record + HEADER_BYTES);
+      target.put(key);
+      if (value != null) {
+        target.put(value);
+      }
+      this.logEnd += recordBytes;
+      this.liveBytes += recordBytes;
+      setSlot(slot, hash, record);
+    }
+
+    // Empties the slot, moving back the keys after it that were displaced past it.
+    void delete(int slot) {
+      this.liveBytes -= lengthOf(recordOf(slot));
+      this.keys--;
+      int mask = this.slotCount - 1;
+      int hole = slot;
+      for (int next = (hole + 1) & mask; recordOf(next) >= 0; next = (next + 1) & mask) {
+        long hash = hashOf(next);
+        int home = (int) hash & mask;
+        if (((next - home) & mask) >= ((next - hole) & mask)) {
+          setSlot(hole, hash, recordOf(next));
+          hole = next;
+        }
+      }
+      this.slots.putLong(hole * SLOT_BYTES, 0);
+      this.slots.putLong(hole * SLOT_BYTES + 8, 0);
+    }
+
+    private long hashOf(int slot) {
+      return this.slots.getLong(slot * SLOT_BYTES);
+    }
+
+    private void setSlot(int slot, long hash, int record) {
+      this.slots.putLong(slot * SLOT_BYTES, hash);
+      this.slots.putLong(slot * SLOT_BYTES + 8, record + 1L);
+    }
+
+    private int lengthOf(int record) {
+      int valueLength = this.log.getInt(record + 4);
+      return HEADER_BYTES + this.log.getInt(record)
+          + (valueLength == TOMBSTONE ? 0 : valueLength);
+    }
+
+    private boolean keyEquals(int record, byte[] key) {
+      if (this.log.getInt(record) != key.length) {
+        return false;
+      }
+      int start = record + HEADER_BYTES;
+      for (int i = 0; i < key.length; i++) {
+        if (this.log.get(start + i) != key[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private String decode(int offset, int length) {
+      byte[] bytes = new byte[length];
+      ByteBuffer source = this.log.duplicate();
+      source.position(offset);
+      source.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Doubles the table and rehashes the slots, which hold their hashes.
+    private void grow() {
+      if (this.slotCount >= MAX_SLOTS) {
+        throw new IllegalStateException(String.format(
+            "A store segment holds %s keys, increase twopc.store.segments.", this.keys));
+      }
+      ByteBuffer oldSlots = this.slots;
+      int oldCount = this.slotCount;
+      this.slotCount = oldCount * 2;
+      this.slots = allocate(this.slotCount * SLOT_BYTES);
+      int mask = this.slotCount - 1;
+      for (int old = 0; old < oldCount; old++) {
+        long offset = oldSlots.getLong(old * SLOT_BYTES + 8);
+        if (offset == 0) {
+          continue;
+        }
+        long hash = oldSlots.getLong(old * SLOT_BYTES);
+        int slot = (int) hash & mask;
+        while (recordOf(slot) >= 0) {
+          slot = (slot + 1) & mask;
+        }
+        setSlot(slot, hash, (int) offset - 1);
+      }
+    }
+
+    // Copies the live records into a new log, twice their size, if the record does not fit.
+    private void reserve(int recordBytes) {
+      if ((long) this.logEnd + recordBytes <= this.log.capacity()) {
+        return;
+      }
+      long needed = (long) this.liveBytes + recordBytes;
+      if (needed > MAX_LOG_BYTES) {
+        throw new IllegalStateException(String.format(
+            "A store segment holds %s bytes, increase twopc.store.segments.", this.liveBytes));
+      }
+      ByteBuffer compacted = allocate((int) Math.min(MAX_LOG_BYTES,
+          Math.max(INITIAL_LOG_BYTES, needed * 2)));
+      int end = 0;
+      for (int slot = 0; slot < this.slotCount; slot++) {
+        int record = recordOf(slot);
+        if (record < 0) {
+          continue;
+        }
+        int length = lengthOf(record);
+        ByteBuffer source = this.log.duplicate();
+        source.position(record).limit(record + length);
+        ByteBuffer target = compacted.duplicate();
+        target.position(end);
+        target.put(source);
+        setSlot(slot, hashOf(slot), end);
+        end += length;
+      }
+      this.log = compacted;
+      this.logEnd = end;
+    }
+  }
+
+  private class LatestView extends AbstractMap<String, String> {
+
+    @Override
+    public String get(Object key) {
+      return OffHeapStore.this.get((String) key);
+    }
+
+    @Override
+    public String put(String key, String value) {
+      return OffHeapStore.this.put(key, value, 0);
+    }
+
+    @Override
+    public int size() {
+      return OffHeapStore.this.size();
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+      return new AbstractSet<Map.Entry<String, String>>() {
+        @Override
+        public Iterator<Map.Entry<String, String>> iterator() {
+          return new LiveIterator();
+        }
+
+        @Override
+        public int size() {
+          return OffHeapStore.this.size();
+        }
+      };
+    }
+  }
+
+  // Copies the live keys of one segment at a time, so writers only wait for that copy.
+  // Hands out the keys in order, the next KEYS_PER_PASS of them from each pass over the segments.
+  private class KeyPassIterator implements Iterator<String> {
+    private String after;
+    private boolean inclusive;
+    private Iterator<String> keys = Collections.emptyIterator();
+    private boolean exhausted = false;
+
+    KeyPassIterator(String start, boolean inclusive) {
+      this.after = start;
+      this.inclusive = inclusive;
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (!this.keys.hasNext() && !this.exhausted) {
+        NavigableSet<String> next = nextKeys();
+        this.exhausted = next.size() < KEYS_PER_PASS;
+        if (!next.isEmpty()) {
+          this.after = next.last();
+          this.inclusive = false;
+        }
+        this.keys = next.iterator();
+      }
+      return this.keys.hasNext();
+    }
+
+    @Override
+    public String next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return this.keys.next();
+    }
+
+    private NavigableSet<String> nextKeys() {
+      TreeSet<String> next = new TreeSet<>();
+      for (Segment segment : segments) {
+        segment.lock.readLock().lock();
+        try {
+          for (int slot = 0; slot < segment.slotCount; slot++) {
+            int record = segment.recordOf(slot);
+            if (record < 0) {
+              continue;
+            }
+            String key = segment.keyOf(record);
+            int order = key.compareTo(this.after);
+            if ((order > 0 || (order == 0 && this.inclusive))
+                && (next.size() < KEYS_PER_PASS || key.compareTo(next.last()) < 0)) {
+              next.add(key);
+              if (next.size() > KEYS_PER_PASS) {
+                next.pollLast();
+              }
+            }
+          }
+        } finally {
+          segment.lock.readLock().unlock();
+        }
+      }
+      return next;
+    }
+  }
+
+  private class LiveIterator implements Iterator<Map.Entry<String, String>> {
+    private int nextSegment = 0;
+    private Iterator<Map.Entry<String, String>> entries = Collections.emptyIterator();
+
+    @Override
+    public boolean hasNext() {
+      while (!this.entries.hasNext() && this.nextSegment < segments.length) {
+        this.entries = liveEntries(segments[this.nextSegment++]).iterator();
+      }
+      return this.entries.hasNext();
+    }
+
+    @Override
+    public Map.Entry<String, String> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return this.entries.next();
+    }
+
+    private List<Map.Entry<String, String>> liveEntries(Segment segment) {
+      List<Map.Entry<String, String>> live = new ArrayList<>();
+      segment.lock.readLock().lock();
+      try {
+        for (int slot = 0; slot < segment.slotCount; slot++) {
+          int record = segment.recordOf(slot);
+          String value = record < 0 ? null : segment.valueOf(record);
+          if (value != null) {
+            live.add(new AbstractMap.SimpleImmutableEntry<>(segment.keyOf(record), value));
+          }
+        }
+      } finally {
+        segment.lock.readLock().unlock();
+      }
+      return live;
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package org.server;
+
+import java.io.Serializable;
+
+/**
+ * A single GET, PUT or DELETE against the key value store.
+ * Several operations travel together when the coordinator batches requests into one round.
+ */
+public class Operation implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private final String operation;
+  private final String key;
+  private final String value;
+
+  public Operation(String operation, String key, String value) {
+    this.operation = operation;
+    this.key = key;
+    this.value = value;
+  }
+
+  public String getOperation() {
+    return operation;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public String getValue() {
+    return value;
+  }
+
+  public boolean isWrite() {
+    return operation.equalsIgnoreCase("PUT") || operation.equalsIgnoreCase("DELETE");
+  }
+
+  // A GET or DELETE of a key, or a PUT of a key and a value.
+  boolean isValid() {
+    if (operation == null || key == null) {
+      return false;
+    }
+    if (operation.equalsIgnoreCase("PUT")) {
+      return value != null;
+    }
+    return operation.equalsIgnoreCase("GET") || operation.equalsIgnoreCase("DELETE");
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s %s %s", operation, key, value == null ? "" : value).trim();
+  }
+}
@@ -0,0 +1,117 @@
+package org.server;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends one phase of the 2PC protocol to every participant at once, so a phase takes as long
+ * as the slowest participant instead of the sum of all of them.
+ * On a JDK with virtual threads each call gets its own virtual thread, bounded by a semaphore;
+ * otherwise a bounded pool of daemon platform threads is used.
+ */
+class ParticipantDispatcher {
+
+  // A single remote call against the participant listening on the given port.
+  interface ParticipantCall<T> {
+    T call(Integer port) throws Exception;
+  }
+
+  private static final int MAX_IN_FLIGHT_CALLS =
+      Integer.getInteger("twopc.dispatch.maxInFlight", 256);
+
+  private final ExecutorService executor;
+  private final Semaphore inFlightCalls;
+
+  ParticipantDispatcher() {
+    ExecutorService virtualThreads = newVirtualThreadExecutor();
+    if (virtualThreads != null) {
+      this.executor = virtualThreads;
+      this.inFlightCalls = new Semaphore(MAX_IN_FLIGHT_CALLS);
+    } else {
+      this.executor = newPlatformThreadExecutor();
+      this.inFlightCalls = null;
+    }
+  }
+
+  /**
+   * Starts the call against every port and returns immediately.
+   * A participant that throws completes its future exceptionally; it never fails the others.
+   */
+  <T> Map<Integer, CompletableFuture<T>> fanOut(Collection<Integer> ports,
+      ParticipantCall<T> participantCall) {
+    Map<Integer, CompletableFuture<T>> results = new LinkedHashMap<>();
+    for (Integer port : ports) {
+      CompletableFuture<T> result = new CompletableFuture<>();
+      results.put(port, result);
+      try {
+        this.executor.execute(() -> invoke(port, participantCall, result));
+      } catch (RuntimeException e) {
+        result.completeExceptionally(e);
+      }
+    }
+    return results;
+  }
+
+  void shutdown() {
+    this.executor.shutdownNow();
+  }
+
+  private <T> void invoke(Integer port, ParticipantCall<T> participantCall,
+      CompletableFuture<T> result) {
+    boolean acquired = false;
+    try {
+      if (this.inFlightCalls != null) {
+        this.inFlightCalls.acquire();
+        acquired = true;
+      }
+      result.complete(participantCall.call(port));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      result.completeExceptionally(e);
+    } catch (Throwable e) {
+      result.completeExceptionally(e);
+    } finally {
+      if (acquired) {
+        this.inFlightCalls.release();
+      }
+    }
+  }
+
+  // Executors.newVirtualThreadPerTaskExecutor() exists from JDK 21 on; looked up reflectively
+  // so the project still builds for 1.8.
+  private static ExecutorService newVirtualThreadExecutor() {
+    try {
+      Method factory =
+          java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  private static ExecutorService newPlatformThreadExecutor() {
+    AtomicInteger threadCount = new AtomicInteger();
+    // Callers run the RPC themselves once the queue is full rather than being rejected.
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(
+        MAX_IN_FLIGHT_CALLS, MAX_IN_FLIGHT_CALLS, 30, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(MAX_IN_FLIGHT_CALLS * 4),
+        (runnable) -> {
+          Thread thread = new Thread(runnable,
+              "participant-dispatch-" + threadCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        },
+        new ThreadPoolExecutor.CallerRunsPolicy());
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+}
@@ -0,0 +1,66 @@
+package org.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-participant timeout that follows the participant's observed round trips, computed the way
+ * TCP computes its retransmission timeout: a smoothed mean plus a multiple of the smoothed mean
+ * deviation, kept within fixed bounds. A participant that slows down earns a longer timeout once
+ * its slow replies arrive; one that stops answering is given up on after the timeout its past
+ * replies earned.
+ */
+class ParticipantTimeouts {
+
+  private static final long INITIAL_NANOS = TimeUnit.MILLISECONDS.toNanos(
+      Long.getLong("twopc.timeout.initialMillis", 5000L));
+  private static final long MIN_NANOS = TimeUnit.MILLISECONDS.toNanos(
+      Long.getLong("twopc.timeout.minMillis", 250L));
+  private static final long MAX_NANOS = TimeUnit.MILLISECONDS.toNanos(
+      Long.getLong("twopc.timeout.maxMillis", 60 * 1000L));
+  private static final int DEVIATION_MULTIPLIER =
+      Integer.getInteger("twopc.timeout.deviationMultiplier", 4);
+
+  private static final class Estimate {
+    private long smoothedNanos;
+    private long deviationNanos;
+    private boolean sampled;
+  }
+
+  private final Map<Integer, Estimate> estimates = new ConcurrentHashMap<>();
+
+  static long maxNanos() {
+    return MAX_NANOS;
+  }
+
+  void record(Integer port, long nanos) {
+    Estimate estimate = this.estimates.computeIfAbsent(port, (key) -> new Estimate());
+    synchronized (estimate) {
+      if (!estimate.sampled) {
+        estimate.smoothedNanos = nanos;
+        estimate.deviationNanos = nanos / 2;
+        estimate.sampled = true;
+      } else {
+        estimate.deviationNanos +=
+            (Math.abs(estimate.smoothedNanos - nanos) - estimate.deviationNanos) / 4;
+        estimate.smoothedNanos += (nanos - estimate.smoothedNanos) / 8;
+      }
+    }
+  }
+
+  long timeoutNanos(Integer port) {
+    Estimate estimate = this.estimates.get(port);
+    if (estimate == null) {
+      return INITIAL_NANOS;
+    }
+    long timeout;
+    synchronized (estimate) {
+      if (!estimate.sampled) {
+        return INITIAL_NANOS;
+      }
+      timeout = estimate.smoothedNanos + DEVIATION_MULTIPLIER * estimate.deviationNanos;
+    }
+    return Math.max(MIN_NANOS, Math.min(MAX_NANOS, timeout));
+  }
+}
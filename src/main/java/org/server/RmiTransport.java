@@ -0,0 +1,48 @@
+package org.server;
+
+import java.io.IOException;
+import java.rmi.AlreadyBoundException;
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The original transport: each exported object gets a registry on its port and is reached
+ * through an RMI stub, one call per connection at a time.
+ */
+class RmiTransport implements Transport {
+
+  private final Map<Integer, Registry> registries = new ConcurrentHashMap<>();
+  // RMI only holds exported objects weakly, so keep them reachable from here.
+  private final List<Remote> exportedObjects = new CopyOnWriteArrayList<>();
+
+  @Override
+  public void export(Integer port, String bindingName, Remote object) throws IOException {
+    Remote stub = UnicastRemoteObject.exportObject(object, port);
+    this.exportedObjects.add(object);
+    Registry registry = this.registries.get(port);
+    if (registry == null) {
+      registry = LocateRegistry.createRegistry(port);
+      this.registries.put(port, registry);
+    }
+    try {
+      registry.bind(bindingName, stub);
+    } catch (AlreadyBoundException e) {
+      throw new IOException(String.format("%s is already bound on port %s", bindingName, port), e);
+    }
+  }
+
+  @Override
+  public <T extends Remote> T lookup(String host, Integer port, String bindingName,
+      Class<T> type) throws RemoteException, NotBoundException {
+    Registry registry = LocateRegistry.getRegistry(host, port);
+    return type.cast(registry.lookup(bindingName));
+  }
+}
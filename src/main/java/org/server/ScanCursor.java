@@ -0,0 +1,96 @@
+package org.server;
+
+import java.io.Serializable;
+
+/**
+ * Where a SCAN or PREFIX stands: the keys it covers, the key to go on from and the snapshot it
+ * reads, so every page sees the same committed state on any server. A new cursor has no
+ * snapshot yet and reads the latest stable one; each page hands back the cursor for the next.
+ * Keys are in String order.
+ */
+public class ScanCursor implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  // The key to start at, or, once a page was read, the last key of it.
+  private final String start;
+  private final boolean startInclusive;
+  // Null for no end, exclusive otherwise.
+  private final String end;
+  // Null for a SCAN.
+  private final String prefix;
+  private final int pageSize;
+  // 0 until the first page picks the snapshot.
+  private final long timestamp;
+
+  private ScanCursor(String start, boolean startInclusive, String end, String prefix,
+      int pageSize, long timestamp) {
+    if (pageSize < 1) {
+      throw new IllegalArgumentException("A scan page must hold at least one key: " + pageSize);
+    }
+    this.start = start;
+    this.startInclusive = startInclusive;
+    this.end = end;
+    this.prefix = prefix;
+    this.pageSize = pageSize;
+    this.timestamp = timestamp;
+  }
+
+  // The keys from start up to but not including end; null for either means no bound.
+  public static ScanCursor range(String start, String end, int pageSize) {
+    return new ScanCursor(start == null ? "" : start, true, end, null, pageSize, 0);
+  }
+
+  public static ScanCursor prefix(String prefix, int pageSize) {
+    return new ScanCursor(prefix, true, null, prefix, pageSize, 0);
+  }
+
+  public String getStart() {
+    return start;
+  }
+
+  public boolean isStartInclusive() {
+    return startInclusive;
+  }
+
+  public String getEnd() {
+    return end;
+  }
+
+  public String getPrefix() {
+    return prefix;
+  }
+
+  public int getPageSize() {
+    return pageSize;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  // Keys sort after the ones covered from the first key past the end on.
+  boolean isPast(String key) {
+    return prefix != null ? !key.startsWith(prefix) : end != null && key.compareTo(end) >= 0;
+  }
+
+  ScanCursor at(long snapshot) {
+    return new ScanCursor(start, startInclusive, end, prefix, pageSize, snapshot);
+  }
+
+  ScanCursor withPageSize(int size) {
+    return new ScanCursor(start, startInclusive, end, prefix, size, timestamp);
+  }
+
+  ScanCursor after(String lastKey) {
+    return new ScanCursor(lastKey, false, end, prefix, pageSize, timestamp);
+  }
+
+  @Override
+  public String toString() {
+    String keys = prefix != null ? "PREFIX " + prefix
+        : String.format("SCAN [%s, %s)", start, end == null ? "" : end);
+    return String.format("%s from %s%s at %s", keys, startInclusive ? "" : "after ", start,
+        timestamp);
+  }
+}
@@ -0,0 +1,36 @@
+package org.server;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * One page of a SCAN or PREFIX: the next keys with a value at the cursor's snapshot, in order,
+ * and the cursor that reads the page after it, null once the keys are exhausted. Keys deleted
+ * at the snapshot take up room in a page without being listed, so a page may be short of the
+ * page size and still have a next one.
+ */
+public class ScanPage implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  // In key order.
+  private final Map<String, String> entries;
+  private final ScanCursor next;
+
+  public ScanPage(Map<String, String> entries, ScanCursor next) {
+    this.entries = entries;
+    this.next = next;
+  }
+
+  public Map<String, String> getEntries() {
+    return entries;
+  }
+
+  public ScanCursor getNext() {
+    return next;
+  }
+
+  public boolean hasNext() {
+    return next != null;
+  }
+}
@@ -1,28 +1,485 @@
 package org.server;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Running Coordinator.jar will spin up 5 individual servers. Please find instructions to run
  * Coordinator in either Coordinator.java or in README.md.
  */
-public class Server extends Thread implements IServer {
+public class Server extends Thread implements IParticipant {
 
+  // The coordinator's registry port is hardcoded as 10000
+  static final Integer COORDINATOR_PORT = 10000;
+
+  // Shared by every server in this process, so the coordinator is looked up once.
+  static final StubCache<ICoordinator> coordinatorStubs =
+      new StubCache<>("LOCALHOST", "COORDINATOR", ICoordinator.class);
+
+  // Used to forward reads of keys this server does not own to one of their replicas.
+  static final StubCache<IServer> peerStubs = new StubCache<>("LOCALHOST", "SERVER", IServer.class);
+  // Used to ask the other participants about a transaction when the coordinator is gone.
+  static final StubCache<IParticipant> participantStubs =
+      new StubCache<>("LOCALHOST", "SERVER", IParticipant.class);
+  // Sends the pages of a scan to the other servers at once.
+  private static final ParticipantDispatcher peerDispatcher = new ParticipantDispatcher();
 
   Integer myPortNumber = null;
   Set<Integer> otherServers = new HashSet<>();
-  boolean lock = false;
-  ConcurrentHashMap<String, String> store = new ConcurrentHashMap<>();
+  // Placement of the keys over this server and the others; null until the ports are known.
+  volatile HashRing ring = null;
+  // Every committed version of each key, so reads at a snapshot never wait for writers.
+  final KeyValueStore store;
+  // Stamps commits that arrive without a coordinator timestamp, as in the callback protocol.
+  // The coordinator hands out every other commit timestamp from its own.
+  final CommitClock clock = new CommitClock();
+  // The latest stable timestamp heard from the coordinator, and the oldest snapshot that can
+  // still be read after garbage collection.
+  private final AtomicLong stableTimestamp = new AtomicLong();
+  private volatile long oldestReadableTimestamp = 0;
+
+
+  // Repairs the keys this server shares with each other server that have drifted apart.
+  final AntiEntropy antiEntropy;
+
+  // Prepare locks the keys of a transaction, commit or abort releases them.
+  final LockManager lockManager = new LockManager();
+  final Map<UUID, List<Operation>> preparedTransactions = new ConcurrentHashMap<>();
+  // Aborts that may overtake their own prepare, so a late prepare does not keep its locks.
+  final Set<UUID> abortedTransactions = Collections.newSetFromMap(Collections.synchronizedMap(
+      new LinkedHashMap<UUID, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UUID, Boolean> eldest) {
+          return size() > RECENT_DECISIONS;
+        }
+      }));
+  // Transactions this server promised a peer it would never prepare, by when. The promise is
+  // logged before it is given and kept as long as the prepare phase it refused can last.
+  private final Map<UUID, Long> refusedTransactions = new ConcurrentHashMap<>();
+  // Recent commits, so peers in doubt about one can learn its outcome here. A query about a
+  // transaction prepared before the newest commit forgotten here, or before this server last
+  // started, cannot be answered as aborted.
+  private final Map<UUID, CommitRecord> committedTransactions = Collections.synchronizedMap(
+      new LinkedHashMap<UUID, CommitRecord>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UUID, CommitRecord> eldest) {
+          if (size() <= RECENT_DECISIONS) {
+            return false;
+          }
+          forgottenCommitsUntilMillis = eldest.getValue().recordedAtMillis;
+          return true;
+        }
+      });
+  private volatile long forgottenCommitsUntilMillis = System.currentTimeMillis();
+  // When each prepared transaction was prepared and which other servers write in it.
+  private final Map<UUID, InDoubt> inDoubtTransactions = new ConcurrentHashMap<>();
+
+  // Prepare and commit records of this server, replayed into store on startup.
+  WriteAheadLog log = null;
+  // Transactions whose commit record is logged but which are not yet applied to store.
+  final Set<UUID> committingTransactions = ConcurrentHashMap.newKeySet();
+  private final AtomicLong commitsSinceSnapshot = new AtomicLong();
+
+  // Counters and latencies of this server, also registered with JMX.
+  final Metrics metrics;
+  private final LongAdder lockTimeouts;
+  private final LongAdder versionsCollected;
+  private final LongAdder resolvedByPeers;
+
+  private static final int RECENT_DECISIONS = 10000;
+  private static final long LOCK_TIMEOUT_MILLIS = Long.getLong("twopc.lock.timeoutMillis", 2000L);
+  static final Path DATA_DIRECTORY = Paths.get(System.getProperty("twopc.data.dir", "data"));
+  static final boolean WAL_ENABLED =
+      Boolean.parseBoolean(System.getProperty("twopc.wal.enabled", "true"));
+  private static final long SNAPSHOT_INTERVAL_MILLIS =
+      Long.getLong("twopc.snapshot.intervalMillis", 60 * 1000L);
+  // Snapshots this far behind the stable timestamp stay readable.
+  private static final long MVCC_RETENTION_MICROS = TimeUnit.MILLISECONDS.toMicros(
+      Long.getLong("twopc.mvcc.retentionMillis", 10 * 1000L));
+  private static final long MVCC_GC_INTERVAL_MILLIS =
+      Long.getLong("twopc.mvcc.gcIntervalMillis", 1000L);
+  // How long a transaction stays prepared before its peers are asked, if the coordinator is gone.
+  private static final long TERMINATION_AFTER_MILLIS =
+      Long.getLong("twopc.termination.afterMillis", 1000L);
+  // The most keys a page of a SCAN or PREFIX holds, whatever the client asks for.
+  private static final int MAX_SCAN_PAGE_SIZE = Integer.getInteger("twopc.scan.maxPageSize", 1000);
+
+  private static final class CommitRecord {
+    private final long commitTimestamp;
+    private final long recordedAtMillis = System.currentTimeMillis();
+
+    CommitRecord(long commitTimestamp) {
+      this.commitTimestamp = commitTimestamp;
+    }
+  }
+
+  private static final class InDoubt {
+    // The other servers that write in the transaction, or null if they are not known, as for
+    // transactions recovered from the log or prepared through the callback protocol.
+    private final Set<Integer> peers;
+    private final long preparedAtMillis = System.currentTimeMillis();
+
+    InDoubt(Set<Integer> peers) {
+      this.peers = peers;
+    }
+  }
 
   public Server(Integer portNumber) {
     this.myPortNumber = portNumber;
+    this.store = KeyValueStore.create(
+        DATA_DIRECTORY.resolve(String.format("server-%s.store", portNumber)));
+    this.metrics = new Metrics(portNumber);
+    this.metrics.gauge("store.size", () -> this.store.size());
+    this.metrics.gauge("transactions.prepared", () -> this.preparedTransactions.size());
+    this.metrics.gauge("mvcc.stableTimestamp", () -> this.stableTimestamp.get());
+    this.lockTimeouts = this.metrics.counter("locks.timedOut");
+    this.versionsCollected = this.metrics.counter("mvcc.versionsCollected");
+    this.resolvedByPeers = this.metrics.counter("transactions.resolvedByPeers");
+    this.antiEntropy = new AntiEntropy(portNumber, this.store, participantStubs, this.metrics,
+        this::logRepairs);
+    this.metrics.register(getClass().getSimpleName());
+    coordinatorStubs.startHealthChecks((coordinator) -> coordinator.getPortNumber());
+    startGarbageCollection();
+    startCooperativeTermination();
+  }
+
+  /**
+   * Opens this server's write-ahead log and replays it into store. Transactions that were
+   * prepared but never decided get their locks back and wait for the coordinator's decision.
+   */
+  void recover() throws IOException {
+    if (!WAL_ENABLED) {
+      return;
+    }
+    this.log = new WriteAheadLog(
+        DATA_DIRECTORY.resolve(String.format("server-%s.wal", this.myPortNumber)));
+    long startTime = System.currentTimeMillis();
+    // Bulk load the latest snapshot, then only replay the log written after it was started.
+    long firstSegment = Math.max(0, StoreSnapshot.load(snapshotPath(), this.store.latest()));
+    Map<UUID, List<Operation>> inDoubt = new LinkedHashMap<>();
+    this.log.replay(firstSegment, (type, requestID, operations) -> {
+      if (type == WriteAheadLog.PREPARE) {
+        inDoubt.put(requestID, operations);
+      } else if (type == WriteAheadLog.COMMIT) {
+        List<Operation> prepared = inDoubt.remove(requestID);
+        if (prepared != null) {
+          // Replayed commits load as base versions, like the snapshot.
+          applyOperations(prepared, 0);
+        }
+      } else if (type == WriteAheadLog.REPAIR) {
+        applyOperations(operations, 0);
+      } else if (inDoubt.remove(requestID) == null && type == WriteAheadLog.ABORT) {
+        // Never prepared here, so a peer was promised it never will be.
+        this.refusedTransactions.put(requestID, System.currentTimeMillis());
+      }
+    });
+    for (Map.Entry<UUID, List<Operation>> transaction : inDoubt.entrySet()) {
+      try {
+        this.lockManager.acquireAll(transaction.getKey(), lockedKeys(transaction.getValue()),
+            LOCK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while recovering server " + this.myPortNumber, e);
+      }
+      this.preparedTransactions.put(transaction.getKey(), transaction.getValue());
+      this.inDoubtTransactions.put(transaction.getKey(), new InDoubt(null));
+    }
+    System.out.println(String.format(
+        "Server at port %s recovered %s keys and %s in-doubt transactions in %s ms.",
+        this.myPortNumber, this.store.size(), inDoubt.size(),
+        System.currentTimeMillis() - startTime));
+    startSnapshots();
+  }
+
+  /**
+   * Writes a snapshot of store and drops the log segments it makes redundant. The log first
+   * rolls to a new segment that starts with every transaction still prepared or in the middle
+   * of committing, so the new segment plus the snapshot hold everything the old segments did.
+   * The store is copied without blocking commits.
+   */
+  void snapshot() throws IOException {
+    long firstSegment;
+    try {
+      firstSegment = this.log.roll(this::unfinishedRecords).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while rolling the log of " + this.myPortNumber, e);
+    } catch (ExecutionException e) {
+      throw new IOException("Unable to roll the log of " + this.myPortNumber, e.getCause());
+    }
+    StoreSnapshot.write(snapshotPath(), this.store.latest(), firstSegment);
+    this.log.deleteSegmentsBefore(firstSegment);
+  }
+
+  /**
+   * Logs the versions a repair installed, so a restart does not undo them, and leaves them to
+   * the next snapshot. They replay as base versions like commits do, which lose to any version
+   * a peer holds, so should a commit to the same key race the record, the next repair settles
+   * the key.
+   */
+  private void logRepairs(List<KeyVersion> versions) {
+    List<Operation> operations = new ArrayList<>(versions.size());
+    for (KeyVersion version : versions) {
+      operations.add(version.getValue() == null
+          ? new Operation("DELETE", version.getKey(), null)
+          : new Operation("PUT", version.getKey(), version.getValue()));
+    }
+    logRecord(WriteAheadLog.REPAIR, UUID.randomUUID(), operations);
+    this.commitsSinceSnapshot.addAndGet(versions.size());
+  }
+
+  private void startSnapshots() {
+    if (SNAPSHOT_INTERVAL_MILLIS <= 0) {
+      return;
+    }
+    Thread snapshotter = new Thread(() -> {
+      while (!Thread.currentThread().isInterrupted()) {
+        try {
+          Thread.sleep(SNAPSHOT_INTERVAL_MILLIS);
+          if (this.commitsSinceSnapshot.getAndSet(0) > 0) {
+            snapshot();
+          }
+        } catch (InterruptedException e) {
+          return;
+        } catch (IOException e) {
+          System.err.println(String.format("Server at port %s failed to write a snapshot: %s",
+              this.myPortNumber, e));
+        }
+      }
+    }, "snapshot-" + this.myPortNumber);
+    snapshotter.setDaemon(true);
+    snapshotter.start();
+  }
+
+  private void startGarbageCollection() {
+    if (MVCC_GC_INTERVAL_MILLIS <= 0) {
+      return;
+    }
+    Thread collector = new Thread(() -> {
+      while (!Thread.currentThread().isInterrupted()) {
+        try {
+          Thread.sleep(MVCC_GC_INTERVAL_MILLIS);
+        } catch (InterruptedException e) {
+          return;
+        }
+        collectGarbage();
+      }
+    }, "mvcc-gc-" + this.myPortNumber);
+    collector.setDaemon(true);
+    collector.start();
+  }
+
+  // Drops the versions that no snapshot within the retention window of the stable timestamp
+  // can see. Reads check the horizon again after reading, so none returns a collected version.
+  void collectGarbage() {
+    long stable = this.stableTimestamp.get();
+    long horizon = stable - MVCC_RETENTION_MICROS;
+    if (stable == 0 || horizon <= this.oldestReadableTimestamp) {
+      return;
+    }
+    this.oldestReadableTimestamp = horizon;
+    this.versionsCollected.add(this.store.collectGarbage(horizon));
+  }
+
+  private void startCooperativeTermination() {
+    if (TERMINATION_AFTER_MILLIS <= 0) {
+      return;
+    }
+    Thread resolver = new Thread(() -> {
+      while (!Thread.currentThread().isInterrupted()) {
+        try {
+          Thread.sleep(Math.max(1, TERMINATION_AFTER_MILLIS / 2));
+        } catch (InterruptedException e) {
+          return;
+        }
+        resolveInDoubtTransactions();
+      }
+    }, "termination-" + this.myPortNumber);
+    resolver.setDaemon(true);
+    resolver.start();
+  }
+
+  /**
+   * Cooperative termination: while the coordinator cannot be reached, a transaction that has
+   * been prepared here for a while is finished as soon as any other participant knows it
+   * committed or aborted, or has not prepared it and so never will. If every participant is
+   * prepared too, it stays blocked until the coordinator returns.
+   */
+  void resolveInDoubtTransactions() {
+    long now = System.currentTimeMillis();
+    List<UUID> blocked = new ArrayList<>();
+    this.inDoubtTransactions.forEach((requestID, transaction) -> {
+      if (now - transaction.preparedAtMillis >= TERMINATION_AFTER_MILLIS
+          && !this.committingTransactions.contains(requestID)) {
+        blocked.add(requestID);
+      }
+    });
+    if (blocked.isEmpty() || isCoordinatorReachable()) {
+      return;
+    }
+    for (UUID requestID : blocked) {
+      InDoubt transaction = this.inDoubtTransactions.get(requestID);
+      if (transaction != null) {
+        resolveWithPeers(requestID, transaction);
+      }
+    }
+  }
+
+  private boolean isCoordinatorReachable() {
+    try {
+      coordinatorStubs.call(COORDINATOR_PORT, (coordinator) -> coordinator.getPortNumber());
+      return true;
+    } catch (RemoteException | NotBoundException e) {
+      return false;
+    }
+  }
+
+  // Without the participants, every other server is asked, but only a decision counts.
+  private void resolveWithPeers(UUID requestID, InDoubt transaction) {
+    boolean knownParticipants = transaction.peers != null;
+    for (Integer peer : knownParticipants ? transaction.peers : this.otherServers) {
+      TransactionStatus status;
+      try {
+        status = participantStubs.call(peer, (participant) -> participant.queryTransaction(
+            requestID, knownParticipants, transaction.preparedAtMillis));
+      } catch (RemoteException | NotBoundException e) {
+        continue;
+      }
+      if (status.getState() == TransactionStatus.State.COMMITTED) {
+        this.clock.observe(status.getCommitTimestamp());
+        commitVote(requestID, Collections.emptyList(), status.getCommitTimestamp());
+        this.resolvedByPeers.increment();
+        return;
+      }
+      if (status.getState() == TransactionStatus.State.ABORTED) {
+        abort(requestID);
+        this.resolvedByPeers.increment();
+        return;
+      }
+    }
+  }
+
+  @Override
+  public TransactionStatus queryTransaction(UUID requestID, boolean isParticipant,
+      long preparedAtMillis) {
+    TransactionStatus[] status = new TransactionStatus[1];
+    boolean[] refused = new boolean[1];
+    // Atomic with a prepare registering itself, so a refused transaction is never prepared.
+    this.preparedTransactions.compute(requestID, (id, operations) -> {
+      if (operations != null) {
+        status[0] = TransactionStatus.PREPARED;
+      } else {
+        status[0] = decidedStatus(id, isParticipant, preparedAtMillis);
+        refused[0] = status[0] == null;
+      }
+      return operations;
+    });
+    if (refused[0]) {
+      // The peer aborts on this answer, so it must outlive a restart; held in memory either way.
+      return logRecord(WriteAheadLog.ABORT, requestID, Collections.emptyList())
+          ? TransactionStatus.ABORTED
+          : TransactionStatus.UNKNOWN;
+    }
+    return status[0];
+  }
+
+  @Override
+  public long[] getMerkleHashes(Integer peer, int[] nodes) {
+    return this.antiEntropy.getMerkleHashes(peer, nodes);
+  }
+
+  @Override
+  public List<KeyVersion> compareRanges(Integer peer, int[] leaves, Map<String, Long> digests) {
+    return this.antiEntropy.compareRanges(peer, leaves, digests);
+  }
+
+  @Override
+  public void applyVersions(List<KeyVersion> versions) {
+    this.antiEntropy.applyVersions(versions);
+  }
+
+  // Null for a transaction refused here, which is only answered as aborted once that is logged.
+  private TransactionStatus decidedStatus(UUID requestID, boolean isParticipant,
+      long preparedAtMillis) {
+    CommitRecord commit = this.committedTransactions.get(requestID);
+    if (commit != null) {
+      return new TransactionStatus(TransactionStatus.State.COMMITTED, commit.commitTimestamp);
+    }
+    if (this.abortedTransactions.contains(requestID)) {
+      return TransactionStatus.ABORTED;
+    }
+    if (this.refusedTransactions.containsKey(requestID)) {
+      return null;
+    }
+    // A commit is only decided after the asker prepared, so one forgotten since then might
+    // have been this transaction.
+    if (isParticipant && preparedAtMillis > this.forgottenCommitsUntilMillis) {
+      // Never prepared here and now never will be, so the coordinator cannot decide to commit.
+      long now = System.currentTimeMillis();
+      this.refusedTransactions.values().removeIf((refusedAt) -> isRefusalExpired(refusedAt, now));
+      this.refusedTransactions.put(requestID, now);
+      return null;
+    }
+    return TransactionStatus.UNKNOWN;
+  }
+
+  private boolean isAborted(UUID requestID) {
+    return this.abortedTransactions.contains(requestID)
+        || this.refusedTransactions.containsKey(requestID);
+  }
+
+  // The refused prepare phase began before the refusal, so it is over by now and a prepare that
+  // arrives later can no longer lead to a commit.
+  private static boolean isRefusalExpired(long refusedAtMillis, long nowMillis) {
+    return nowMillis - refusedAtMillis > TimeUnit.NANOSECONDS.toMillis(
+        ParticipantTimeouts.maxNanos());
+  }
+
+  // Called on the log's writer thread when it rolls, see snapshot.
+  private List<WriteAheadLog.Record> unfinishedRecords() {
+    List<WriteAheadLog.Record> records = new ArrayList<>();
+    this.preparedTransactions.forEach((requestID, operations) -> {
+      if (hasWrites(operations)) {
+        records.add(new WriteAheadLog.Record(WriteAheadLog.PREPARE, requestID, operations));
+        if (this.committingTransactions.contains(requestID)) {
+          records.add(new WriteAheadLog.Record(WriteAheadLog.COMMIT, requestID,
+              Collections.emptyList()));
+        }
+      }
+    });
+    long now = System.currentTimeMillis();
+    this.refusedTransactions.forEach((requestID, refusedAt) -> {
+      if (!isRefusalExpired(refusedAt, now)) {
+        records.add(new WriteAheadLog.Record(WriteAheadLog.ABORT, requestID,
+            Collections.emptyList()));
+      }
+    });
+    return records;
+  }
+
+  private Path snapshotPath() {
+    return DATA_DIRECTORY.resolve(String.format("server-%s.snapshot", this.myPortNumber));
   }
 
   @Override
@@ -35,9 +492,18 @@ public class Server extends Thread implements IServer {
     return myPortNumber;
   }
 
+  @Override
+  public MetricsSnapshot getMetrics() {
+    return this.metrics.snapshot();
+  }
+
   @Override
   public void setOtherServers(Set<Integer> otherServers) {
     this.otherServers = otherServers;
+    Set<Integer> ports = new HashSet<>(otherServers);
+    ports.add(this.myPortNumber);
+    this.ring = HashRing.of(ports);
+    this.antiEntropy.setRing(this.ring, otherServers);
   }
 
   @Override
@@ -45,28 +511,157 @@ public class Server extends Thread implements IServer {
       throws RemoteException, NotBoundException {
     // GET operations does not need 2PC
     if (operation.equalsIgnoreCase("GET")) {
-      return store.getOrDefault(key, ""
+      if (!ownsKey(key)) {
+        return forwardRead(key, (peer) -> peer.handleRequest(requestID, operation, key, value));
+      }
+      String storedValue = readOnly(Collections.singletonList(new Operation(operation, key, value)))
+          .get(0);
+      return storedValue != null ? storedValue : ""
           + "\nThe value you queried is NOT Currently In store."
-          + "\nAborting Prepare and Commit Phase.");
+          + "\nAborting Prepare and Commit Phase.";
     }
-    // Get the registry of the coordinator at port hardcoded as 10000
-    Registry registry = LocateRegistry.getRegistry("LOCALHOST", 10000);
-    IServer coordinator = (IServer) registry.lookup("COORDINATOR");
-
     // Upon receiving a request, delegate the task of 2PC to the coordinator.
-    return coordinator.handleRequest(requestID, operation, key, value);
+    TransactionMessage transaction = new TransactionMessage(requestID,
+        Collections.singletonList(new Operation(operation, key, value)));
+    TransactionResult outcome = coordinatorStubs.call(COORDINATOR_PORT,
+        (coordinator) -> coordinator.handleTransaction(transaction));
+    return Coordinator.describeOutcome(COORDINATOR_PORT, requestID, outcome);
+  }
+
+  @Override
+  public TransactionResult handleTransaction(UUID requestID, List<Operation> operations)
+      throws RemoteException, NotBoundException {
+    // Transactions made only of GETs do not need 2PC either, they read a snapshot
+    if (operations.stream().noneMatch(Operation::isWrite)) {
+      return readSnapshot(requestID, operations, 0);
+    }
+    TransactionMessage transaction = new TransactionMessage(requestID, operations);
+    return coordinatorStubs.call(COORDINATOR_PORT,
+        (coordinator) -> coordinator.handleTransaction(transaction));
+  }
+
+  @Override
+  public TransactionResult handleTransaction(TransactionMessage transaction)
+      throws RemoteException, NotBoundException {
+    return handleTransaction(transaction.getRequestID(), transaction.getOperations());
+  }
+
+  @Override
+  public TransactionResult readSnapshot(UUID requestID, List<Operation> reads, long timestamp)
+      throws RemoteException, NotBoundException {
+    long snapshot = timestamp > 0 ? timestamp : this.stableTimestamp.get();
+    if (snapshot == 0) {
+      // Nothing heard from the coordinator yet.
+      snapshot = refreshStableTimestamp();
+    }
+    return new TransactionResult(requestID, TransactionResult.Status.COMMITTED,
+        readRouted(requestID, reads, snapshot), snapshot);
+  }
+
+  /**
+   * Merges the pages of every server at one snapshot. Each server returns its first keys after
+   * the cursor, so the first keys of the merged pages are the first keys overall; a server
+   * being down loses none of them while fewer servers are down than hold each key.
+   */
+  @Override
+  public ScanPage scan(UUID requestID, ScanCursor cursor)
+      throws RemoteException, NotBoundException {
+    long snapshot = cursor.getTimestamp() > 0 ? cursor.getTimestamp() : this.stableTimestamp.get();
+    if (snapshot == 0) {
+      snapshot = refreshStableTimestamp();
+    }
+    ScanCursor page = cursor.at(snapshot)
+        .withPageSize(Math.min(cursor.getPageSize(), MAX_SCAN_PAGE_SIZE));
+    // A page takes as long as the slowest server, not all of them in turn.
+    Map<Integer, CompletableFuture<List<KeyVersion>>> replies = peerDispatcher.fanOut(
+        this.otherServers,
+        (peer) -> participantStubs.call(peer, (participant) -> participant.scanReplica(page)));
+    SortedMap<String, KeyVersion> newest = new TreeMap<>();
+    keepNewest(newest, scanReplica(page));
+    RemoteException failure = null;
+    int unreachable = 0;
+    for (Map.Entry<Integer, CompletableFuture<List<KeyVersion>>> reply : replies.entrySet()) {
+      try {
+        keepNewest(newest, reply.getValue().get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RemoteException("Interrupted while scanning server " + reply.getKey(), e);
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof NotBoundException) {
+          throw (NotBoundException) cause;
+        } else if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        } else if (!(cause instanceof RemoteException)) {
+          throw new RemoteException("Unable to scan server " + reply.getKey(), cause);
+        }
+        failure = (RemoteException) cause;
+        unreachable++;
+      }
+    }
+    if (unreachable >= HashRing.REPLICATION_FACTOR) {
+      throw failure;
+    }
+    // Every replica that filled its page went at least this far, so these keys are settled.
+    // Deleted ones still count towards the page, so a page may come back short before the end.
+    Map<String, String> entries = new LinkedHashMap<>();
+    String lastKey = null;
+    int settled = 0;
+    for (KeyVersion version : newest.values()) {
+      if (settled == page.getPageSize()) {
+        break;
+      }
+      settled++;
+      lastKey = version.getKey();
+      if (version.getValue() != null) {
+        entries.put(lastKey, version.getValue());
+      }
+    }
+    return new ScanPage(entries, settled < page.getPageSize() ? null : page.after(lastKey));
+  }
+
+  // A replica that missed a write or a delete loses to one that has it.
+  private static void keepNewest(Map<String, KeyVersion> newest, List<KeyVersion> versions) {
+    for (KeyVersion version : versions) {
+      newest.merge(version.getKey(), version,
+          (current, candidate) -> candidate.beats(current) ? candidate : current);
+    }
+  }
+
+  @Override
+  public List<KeyVersion> scanReplica(ScanCursor cursor)
+      throws RemoteException, NotBoundException {
+    long snapshot = cursor.getTimestamp();
+    checkStable(snapshot);
+    List<KeyVersion> versions = new ArrayList<>();
+    Iterator<String> keys = this.store.keysFrom(cursor.getStart(), cursor.isStartInclusive());
+    while (keys.hasNext() && versions.size() < cursor.getPageSize()) {
+      String key = keys.next();
+      if (cursor.isPast(key)) {
+        break;
+      }
+      KeyVersion version = this.store.versionAt(key, snapshot);
+      if (version != null) {
+        versions.add(version);
+      }
+    }
+    checkRetained(snapshot);
+    return versions;
   }
 
   @Override
   public String prepare(UUID requestID, String operation, String key, String value)
       throws RemoteException, NotBoundException {
+    Vote vote = prepareVote(requestID,
+        Collections.singletonList(new Operation(operation, key, value)));
     try {
-      // Get the registry of the coordinator at port hardcoded as 10000
-      Registry registry = LocateRegistry.getRegistry("LOCALHOST", 10000);
-      ICoordinator coordinator = (ICoordinator) registry.lookup("COORDINATOR");
-      coordinator.updatePreparationResponses(((IServer) this).getPortNumber(), requestID);
-      return String.format("\nSuccess | Server at port | %s | is prepared.",
-          ((IServer) this).getPortNumber());
+      if (vote.isYes()) {
+        coordinatorStubs.call(COORDINATOR_PORT, (coordinator) -> {
+          coordinator.updatePreparationResponses(this.myPortNumber, requestID);
+          return null;
+        });
+      }
+      return vote.getMessage();
     } catch (Exception e) {
       return String.format("\nFailure | Server at port | %s | failed to prepare.",
           ((IServer) this).getPortNumber());
@@ -74,43 +669,360 @@ public class Server extends Thread implements IServer {
   }
 
   @Override
-  public String commit(UUID requestID, String operation, String key, String value)
-      throws RemoteException, NotBoundException {
-    // Get the registry of the coordinator at port hardcoded as 10000
-    Registry registry = LocateRegistry.getRegistry("LOCALHOST", 10000);
-    ICoordinator coordinator = (ICoordinator) registry.lookup("COORDINATOR");
-    boolean isCommitSuccessful = false;
-    if (operation.equalsIgnoreCase("PUT")) {
-      isCommitSuccessful = putKeyValue(key, value);
-    } else if (operation.equalsIgnoreCase("DELETE")) {
-      isCommitSuccessful = deleteKeyValue(key);
-    }
-    if (isCommitSuccessful) {
-      coordinator.updateCommitResponses(((IServer) this).getPortNumber(), requestID);
-      return String.format("\nSuccess | Server at port | %s | is committed.",
-          ((IServer) this).getPortNumber());
+  public String commit(UUID requestID, String operation, String key, String value,
+      long commitTimestamp) throws RemoteException, NotBoundException {
+    Vote vote = commitVote(new TransactionMessage(requestID,
+        Collections.singletonList(new Operation(operation, key, value)), commitTimestamp, 0));
+    if (vote.isYes()) {
+      coordinatorStubs.call(COORDINATOR_PORT, (coordinator) -> {
+        coordinator.updateCommitResponses(this.myPortNumber, requestID);
+        return null;
+      });
     }
-    return String.format("\nFailure | Server at port | %s | failed to commit.",
-        ((IServer) this).getPortNumber());
+    return vote.getMessage();
   }
 
-  private boolean putKeyValue(String key, String value) {
-    this.store.put(key, value);
-    if (this.store.get(key) == value) {
-      return true;
+  @Override
+  public Vote prepareVote(UUID requestID, List<Operation> operations) {
+    return prepareVote(requestID, operations, null);
+  }
+
+  // The peers are the other servers that write in the transaction, null if they are not known.
+  private Vote prepareVote(UUID requestID, List<Operation> operations, Set<Integer> peers) {
+    for (Operation operation : operations) {
+      if (operation == null || !operation.isValid()) {
+        return new Vote(this.myPortNumber, requestID, AbortReason.INVALID_OPERATION,
+            String.format("\nFailure | Server at port | %s | failed to prepare | %s.",
+                this.myPortNumber, operation));
+      }
+    }
+    if (this.preparedTransactions.containsKey(requestID)) {
+      return preparedVote(requestID);
+    }
+    if (isAborted(requestID)) {
+      // The coordinator gave up before this prepare arrived, so do not wait for the locks.
+      return new Vote(this.myPortNumber, requestID, AbortReason.ALREADY_ABORTED,
+          String.format("\nFailure | Server at port | %s | already aborted | %s.",
+              this.myPortNumber, requestID));
+    }
+    if (!hasWrites(operations)) {
+      // Nothing to commit here, so read now and leave the commit phase to the writers.
+      try {
+        return new Vote(this.myPortNumber, requestID, Vote.Decision.READ_ONLY,
+            String.format("\nSuccess | Server at port | %s | is read-only.", this.myPortNumber),
+            readOnly(operations));
+      } catch (RemoteException e) {
+        return new Vote(this.myPortNumber, requestID, AbortReason.READ_FAILURE,
+            String.format("\nFailure | Server at port | %s | failed to read the keys of | %s.",
+                this.myPortNumber, requestID));
+      }
+    }
+    SortedMap<String, Boolean> keys = lockedKeys(operations);
+    boolean isLocked;
+    try {
+      isLocked = this.lockManager.acquireAll(requestID, keys, LOCK_TIMEOUT_MILLIS,
+          TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      isLocked = false;
     }
-    return false;
+    if (!isLocked) {
+      this.lockTimeouts.increment();
+      return new Vote(this.myPortNumber, requestID, AbortReason.LOCK_TIMEOUT,
+          String.format("\nFailure | Server at port | %s | failed to lock the keys of | %s.",
+              this.myPortNumber, requestID));
+    }
+    // Registered before logging, so a log roll in between carries the prepare over, and
+    // atomically with queryTransaction, which may have promised a peer it is never prepared.
+    this.inDoubtTransactions.put(requestID, new InDoubt(peers));
+    if (this.preparedTransactions.compute(requestID, (id, prepared) ->
+        isAborted(id) ? prepared : operations) != operations) {
+      this.inDoubtTransactions.remove(requestID);
+      this.lockManager.releaseAll(requestID, keys.keySet());
+      return new Vote(this.myPortNumber, requestID, AbortReason.ALREADY_ABORTED,
+          String.format("\nFailure | Server at port | %s | already aborted | %s.",
+              this.myPortNumber, requestID));
+    }
+    if (!logRecord(WriteAheadLog.PREPARE, requestID, operations)) {
+      this.inDoubtTransactions.remove(requestID);
+      this.preparedTransactions.remove(requestID);
+      this.lockManager.releaseAll(requestID, keys.keySet());
+      return new Vote(this.myPortNumber, requestID, AbortReason.LOG_FAILURE,
+          String.format("\nFailure | Server at port | %s | failed to log | %s.",
+              this.myPortNumber, requestID));
+    }
+    if (isAborted(requestID)) {
+      abort(requestID);
+      return new Vote(this.myPortNumber, requestID, AbortReason.ALREADY_ABORTED,
+          String.format("\nFailure | Server at port | %s | already aborted | %s.",
+              this.myPortNumber, requestID));
+    }
+    return preparedVote(requestID);
+  }
+
+  @Override
+  public Vote commitVote(UUID requestID, List<Operation> operations) {
+    return commitVote(requestID, operations, 0);
   }
 
-  private boolean deleteKeyValue(String key) {
-    synchronized (store) {
-      this.store.remove(key);
+  // A timestamp of 0 lets this server pick one.
+  private Vote commitVote(UUID requestID, List<Operation> operations, long commitTimestamp) {
+    List<Operation> preparedOperations = this.preparedTransactions.get(requestID);
+    if (preparedOperations == null) {
+      // Not prepared here yet, so take the locks first.
+      Vote vote = prepareVote(requestID, operations);
+      if (vote.getDecision() != Vote.Decision.PREPARED) {
+        return vote;
+      }
+      preparedOperations = this.preparedTransactions.get(requestID);
+      // A timestamp issued before the keys were locked may be older than a commit that got to
+      // them first, so it only bounds the one taken now from below.
+      commitTimestamp = commitTimestamp > 0
+          ? this.clock.nextAtLeast(commitTimestamp)
+          : this.clock.next();
+    } else if (commitTimestamp > 0) {
+      this.clock.observe(commitTimestamp);
+    } else {
+      commitTimestamp = this.clock.next();
     }
-    if (this.store.get(key) != null) {
+    this.committingTransactions.add(requestID);
+    if (hasWrites(preparedOperations)
+        && !logRecord(WriteAheadLog.COMMIT, requestID, Collections.emptyList())) {
+      this.committingTransactions.remove(requestID);
+      // Still prepared and locked, so the coordinator can retry the commit.
+      return new Vote(this.myPortNumber, requestID, AbortReason.LOG_FAILURE,
+          String.format("\nFailure | Server at port | %s | failed to commit.", this.myPortNumber));
+    }
+    // The decision is known from here on, whether or not applying it works.
+    this.committedTransactions.put(requestID, new CommitRecord(commitTimestamp));
+    List<String> results;
+    try {
+      results = applyOperations(preparedOperations, commitTimestamp);
+      this.commitsSinceSnapshot.incrementAndGet();
+    } catch (RuntimeException e) {
+      return new Vote(this.myPortNumber, requestID, AbortReason.APPLY_FAILURE,
+          String.format("\nFailure | Server at port | %s | failed to commit.", this.myPortNumber));
+    } finally {
+      release(requestID);
+      this.committingTransactions.remove(requestID);
+    }
+    return new Vote(this.myPortNumber, requestID, Vote.Decision.COMMITTED,
+        String.format("\nSuccess | Server at port | %s | is committed.", this.myPortNumber),
+        results, commitTimestamp);
+  }
+
+  @Override
+  public Vote prepareVote(TransactionMessage transaction) {
+    advanceStableTimestamp(transaction.getStableTimestamp());
+    Set<Integer> peers = null;
+    if (!transaction.getParticipants().isEmpty()) {
+      peers = new HashSet<>(transaction.getParticipants());
+      peers.remove(this.myPortNumber);
+    }
+    return prepareVote(transaction.getRequestID(), transaction.getOperations(), peers);
+  }
+
+  @Override
+  public Vote commitVote(TransactionMessage transaction) {
+    advanceStableTimestamp(transaction.getStableTimestamp());
+    return commitVote(transaction.getRequestID(), transaction.getOperations(),
+        transaction.getCommitTimestamp());
+  }
+
+  @Override
+  public void advanceStableTimestamp(long timestamp) {
+    this.stableTimestamp.accumulateAndGet(timestamp, Math::max);
+    this.clock.observe(timestamp);
+  }
+
+  private long refreshStableTimestamp() throws RemoteException, NotBoundException {
+    advanceStableTimestamp(coordinatorStubs.call(COORDINATOR_PORT,
+        (coordinator) -> coordinator.getStableTimestamp()));
+    return this.stableTimestamp.get();
+  }
+
+  @Override
+  public void abort(UUID requestID) {
+    this.abortedTransactions.add(requestID);
+    List<Operation> operations = this.preparedTransactions.get(requestID);
+    if (this.log != null && operations != null && hasWrites(operations)) {
+      // Presumed abort: a lost abort record only leaves the transaction in doubt, so no fsync.
+      this.log.append(WriteAheadLog.ABORT, requestID, Collections.emptyList());
+    }
+    // A prepare still queued for a lock gives up now instead of at the lock timeout.
+    this.lockManager.cancel(requestID);
+    release(requestID);
+  }
+
+  @Override
+  public List<UUID> getPreparedTransactions() {
+    return new ArrayList<>(this.preparedTransactions.keySet());
+  }
+
+  // Writes the record and waits for the group fsync; read-only transactions log nothing.
+  private boolean logRecord(byte type, UUID requestID, List<Operation> operations) {
+    if (this.log == null || (type == WriteAheadLog.PREPARE && !hasWrites(operations))) {
       return true;
     }
-    return false;
+    try {
+      this.log.append(type, requestID, operations).get();
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (ExecutionException e) {
+      System.err.println(String.format("Server at port %s failed to write its log: %s",
+          this.myPortNumber, e.getCause()));
+      return false;
+    }
+  }
+
+  private static boolean hasWrites(List<Operation> operations) {
+    return operations.stream().anyMatch(Operation::isWrite);
   }
 
+  // Carries the clock, which is past every commit to the locked keys, so the coordinator picks
+  // a later commit timestamp.
+  private Vote preparedVote(UUID requestID) {
+    return new Vote(this.myPortNumber, requestID, Vote.Decision.PREPARED,
+        String.format("\nSuccess | Server at port | %s | is prepared.", this.myPortNumber),
+        Collections.emptyList(), this.clock.current());
+  }
 
+  private void release(UUID requestID) {
+    this.inDoubtTransactions.remove(requestID);
+    List<Operation> operations = this.preparedTransactions.remove(requestID);
+    if (operations != null) {
+      this.lockManager.releaseAll(requestID, lockedKeys(operations).keySet());
+    }
+  }
+
+  // Every key the operations touch, mapped to true if any of them writes it.
+  private static SortedMap<String, Boolean> lockedKeys(List<Operation> operations) {
+    SortedMap<String, Boolean> keys = new TreeMap<>();
+    for (Operation operation : operations) {
+      keys.merge(operation.getKey(), operation.isWrite(), Boolean::logicalOr);
+    }
+    return keys;
+  }
+
+  // Applies the operations in order as versions at the commit timestamp; the caller holds their
+  // key locks, so transactions on other keys commit in parallel. Later operations see earlier
+  // writes.
+  private List<String> applyOperations(List<Operation> operations, long commitTimestamp) {
+    List<String> results = new ArrayList<>(operations.size());
+    for (Operation operation : operations) {
+      if (operation.getOperation().equalsIgnoreCase("PUT")) {
+        results.add(this.store.put(operation.getKey(), operation.getValue(), commitTimestamp));
+      } else if (operation.getOperation().equalsIgnoreCase("DELETE")) {
+        results.add(this.store.remove(operation.getKey(), commitTimestamp));
+      } else {
+        results.add(this.store.get(operation.getKey()));
+      }
+    }
+    return results;
+  }
+
+  private boolean ownsKey(String key) {
+    HashRing ring = this.ring;
+    return ring == null || ring.isOwner(this.myPortNumber, key);
+  }
+
+  // Sends a read to the replicas of the key in ring order until one of them answers.
+  private <R> R forwardRead(String key, StubCache.RemoteCall<IServer, R> read)
+      throws RemoteException, NotBoundException {
+    RemoteException failure = null;
+    for (Integer owner : this.ring.ownersOf(key)) {
+      try {
+        return peerStubs.call(owner, read);
+      } catch (RemoteException e) {
+        failure = e;
+      }
+    }
+    throw failure;
+  }
+
+  // Reads the keys this server owns locally and forwards the rest to their primary owners,
+  // all at the same snapshot.
+  private List<String> readRouted(UUID requestID, List<Operation> operations, long snapshot)
+      throws RemoteException, NotBoundException {
+    Map<Integer, List<Integer>> indicesByOwner = new LinkedHashMap<>();
+    for (int i = 0; i < operations.size(); i++) {
+      String key = operations.get(i).getKey();
+      Integer owner = ownsKey(key) ? this.myPortNumber : this.ring.ownersOf(key).get(0);
+      indicesByOwner.computeIfAbsent(owner, (port) -> new ArrayList<>()).add(i);
+    }
+    if (indicesByOwner.size() == 1 && indicesByOwner.containsKey(this.myPortNumber)) {
+      return readAt(operations, snapshot);
+    }
+    String[] results = new String[operations.size()];
+    for (Map.Entry<Integer, List<Integer>> owner : indicesByOwner.entrySet()) {
+      List<Operation> reads = new ArrayList<>(owner.getValue().size());
+      owner.getValue().forEach((index) -> reads.add(operations.get(index)));
+      List<String> ownerResults = owner.getKey().equals(this.myPortNumber)
+          ? readAt(reads, snapshot)
+          : forwardRead(reads.get(0).getKey(),
+              (peer) -> peer.readSnapshot(requestID, reads, snapshot)).getResults();
+      for (int i = 0; i < reads.size(); i++) {
+        results[owner.getValue().get(i)] = ownerResults.get(i);
+      }
+    }
+    return Arrays.asList(results);
+  }
+
+  // Reads the keys as of the snapshot; this never waits for locks or in-flight commits.
+  private List<String> readAt(List<Operation> operations, long snapshot)
+      throws RemoteException, NotBoundException {
+    checkStable(snapshot);
+    List<String> results = new ArrayList<>(operations.size());
+    for (Operation operation : operations) {
+      results.add(this.store.getAt(operation.getKey(), snapshot));
+    }
+    checkRetained(snapshot);
+    return results;
+  }
+
+  private void checkStable(long snapshot) throws RemoteException, NotBoundException {
+    if (snapshot > this.stableTimestamp.get() && snapshot > refreshStableTimestamp()) {
+      throw new RemoteException(String.format(
+          "Server at port %s cannot read at %s yet, commits up to it may still be in flight.",
+          this.myPortNumber, snapshot));
+    }
+  }
+
+  // Checked after reading, as versions the reads needed may have been collected meanwhile.
+  private void checkRetained(long snapshot) throws RemoteException {
+    if (snapshot < this.oldestReadableTimestamp) {
+      throw new RemoteException(String.format(
+          "Server at port %s no longer keeps the versions at %s.", this.myPortNumber, snapshot));
+    }
+  }
+
+  // Reads the keys under shared locks, so a read-only transaction never sees half a commit.
+  private List<String> readOnly(List<Operation> operations) throws RemoteException {
+    if (operations.size() == 1) {
+      // A single key is read atomically without locking.
+      return Collections.singletonList(this.store.get(operations.get(0).getKey()));
+    }
+    UUID readID = UUID.randomUUID();
+    SortedMap<String, Boolean> keys = lockedKeys(operations);
+    try {
+      if (!this.lockManager.acquireAll(readID, keys, LOCK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+        throw new RemoteException(String.format(
+            "Server at port %s timed out waiting to read %s", this.myPortNumber, keys.keySet()));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RemoteException("Server was interrupted while reading " + keys.keySet(), e);
+    }
+    try {
+      List<String> results = new ArrayList<>(operations.size());
+      for (Operation operation : operations) {
+        results.add(this.store.get(operation.getKey()));
+      }
+      return results;
+    } finally {
+      this.lockManager.releaseAll(readID, keys.keySet());
+    }
+  }
 }
@@ -0,0 +1,163 @@
+package org.server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Point-in-time copy of a server's store in a compact binary file.
+ * Entries are written as [int key length][key][int value length][value] in UTF-8, grouped into
+ * chunks that are listed in an index at the end of the file, followed by the trailer
+ * [long log segment][int chunk count][long index offset][int magic]. The log segment is the
+ * first write-ahead log segment whose records are not guaranteed to be in the snapshot.
+ * Loading maps each chunk into memory and decodes the chunks in parallel.
+ */
+class StoreSnapshot {
+
+  private static final int MAGIC = 0x32504353;
+  private static final int TRAILER_BYTES = 8 + 4 + 8 + 4;
+  private static final int INDEX_ENTRY_BYTES = 8 + 4;
+  private static final int CHUNK_BYTES = 8 * 1024 * 1024;
+
+  private StoreSnapshot() {
+  }
+
+  /**
+   * Writes the store to a temporary file next to the target and moves it into place once it is
+   * on disk. The store is iterated without blocking writers, so the copy may include some
+   * writes made while it runs; replaying the log from the given segment makes it exact.
+   */
+  static void write(Path target, Map<String, String> store, long logSegment) throws IOException {
+    Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+    List<long[]> chunks = new ArrayList<>();
+    try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      ByteBuffer buffer = ByteBuffer.allocate(CHUNK_BYTES);
+      long chunkStart = 0;
+      for (Map.Entry<String, String> entry : store.entrySet()) {
+        byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+        byte[] value = entry.getValue().getBytes(StandardCharsets.UTF_8);
+        int entryBytes = 8 + key.length + value.length;
+        if (buffer.position() > 0 && buffer.remaining() < entryBytes) {
+          chunkStart = writeChunk(out, buffer, chunkStart, chunks);
+        }
+        if (buffer.capacity() < entryBytes) {
+          buffer = ByteBuffer.allocate(entryBytes);
+        }
+        buffer.putInt(key.length).put(key).putInt(value.length).put(value);
+      }
+      if (buffer.position() > 0) {
+        chunkStart = writeChunk(out, buffer, chunkStart, chunks);
+      }
+      ByteBuffer index = ByteBuffer.allocate(chunks.size() * INDEX_ENTRY_BYTES + TRAILER_BYTES);
+      for (long[] chunk : chunks) {
+        index.putLong(chunk[0]).putInt((int) chunk[1]);
+      }
+      index.putLong(logSegment).putInt(chunks.size()).putLong(chunkStart).putInt(MAGIC);
+      index.flip();
+      while (index.hasRemaining()) {
+        out.write(index);
+      }
+      out.force(true);
+    }
+    Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Loads the snapshot into the store and returns the log segment to replay from,
+   * or -1 if there is no usable snapshot.
+   */
+  static long load(Path source, Map<String, String> store) throws IOException {
+    if (!Files.exists(source)) {
+      return -1;
+    }
+    try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+      long size = in.size();
+      if (size < TRAILER_BYTES) {
+        return -1;
+      }
+      ByteBuffer trailer = ByteBuffer.allocate(TRAILER_BYTES);
+      readFully(in, trailer, size - TRAILER_BYTES);
+      trailer.flip();
+      long logSegment = trailer.getLong();
+      int chunkCount = trailer.getInt();
+      long indexOffset = trailer.getLong();
+      if (trailer.getInt() != MAGIC) {
+        return -1;
+      }
+      ByteBuffer index = ByteBuffer.allocate(chunkCount * INDEX_ENTRY_BYTES);
+      readFully(in, index, indexOffset);
+      index.flip();
+      long[] offsets = new long[chunkCount];
+      int[] lengths = new int[chunkCount];
+      for (int i = 0; i < chunkCount; i++) {
+        offsets[i] = index.getLong();
+        lengths[i] = index.getInt();
+      }
+      try {
+        IntStream.range(0, chunkCount).parallel().forEach((chunk) -> {
+          try {
+            loadChunk(in.map(FileChannel.MapMode.READ_ONLY, offsets[chunk], lengths[chunk]),
+                store);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+      return logSegment;
+    }
+  }
+
+  private static void loadChunk(MappedByteBuffer chunk, Map<String, String> store) {
+    byte[] bytes = new byte[256];
+    while (chunk.hasRemaining()) {
+      int keyLength = chunk.getInt();
+      bytes = ensureCapacity(bytes, keyLength);
+      chunk.get(bytes, 0, keyLength);
+      String key = new String(bytes, 0, keyLength, StandardCharsets.UTF_8);
+      int valueLength = chunk.getInt();
+      bytes = ensureCapacity(bytes, valueLength);
+      chunk.get(bytes, 0, valueLength);
+      store.put(key, new String(bytes, 0, valueLength, StandardCharsets.UTF_8));
+    }
+  }
+
+  private static byte[] ensureCapacity(byte[] bytes, int length) {
+    return bytes.length >= length ? bytes : new byte[Math.max(length, bytes.length * 2)];
+  }
+
+  private static long writeChunk(FileChannel out, ByteBuffer buffer, long chunkStart,
+      List<long[]> chunks) throws IOException {
+    buffer.flip();
+    int length = buffer.remaining();
+    while (buffer.hasRemaining()) {
+      out.write(buffer);
+    }
+    buffer.clear();
+    chunks.add(new long[] {chunkStart, length});
+    return chunkStart + length;
+  }
+
+  private static void readFully(FileChannel in, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      if (in.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of snapshot");
+      }
+    }
+  }
+}
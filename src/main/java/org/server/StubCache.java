@@ -0,0 +1,130 @@
+package org.server;
+
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves the remote stub bound under one name on each of a set of ports, once per port,
+ * through the selected transport, and hands the cached stub out on every request.
+ * A stub is only dropped after a RemoteException, either on the request path or from the
+ * background health check, which also re-resolves it so the next request finds it ready.
+ * Shared by the servers (to reach the coordinator) and by the client (to reach the servers).
+ */
+public class StubCache<T extends Remote> {
+
+  // A remote call made against a cached stub.
+  public interface RemoteCall<T, R> {
+    R call(T stub) throws RemoteException, NotBoundException;
+  }
+
+  private static final long HEALTH_CHECK_MILLIS =
+      Long.getLong("twopc.stubs.healthCheckMillis", 5000L);
+
+  private final String host;
+  private final String bindingName;
+  private final Class<T> type;
+  private final Map<Integer, T> stubs = new ConcurrentHashMap<>();
+  private ScheduledExecutorService healthChecker;
+
+  public StubCache(String host, String bindingName, Class<T> type) {
+    this.host = host;
+    this.bindingName = bindingName;
+    this.type = type;
+  }
+
+  // Returns the cached stub for the port, looking it up in the port's registry the first time.
+  public T get(Integer port) throws RemoteException, NotBoundException {
+    T stub = this.stubs.get(port);
+    if (stub == null) {
+      stub = resolve(port);
+    }
+    return stub;
+  }
+
+  /**
+   * Runs the call against the cached stub for the port.
+   * If the call could not reach a stale stub at all, the stub is re-resolved and the call is
+   * retried once; any other RemoteException invalidates the stub and is rethrown.
+   */
+  public <R> R call(Integer port, RemoteCall<T, R> remoteCall)
+      throws RemoteException, NotBoundException {
+    T stub = get(port);
+    try {
+      return remoteCall.call(stub);
+    } catch (ConnectException | ConnectIOException | NoSuchObjectException e) {
+      // The call never reached the remote object, so it is safe to repeat.
+      invalidate(port, stub);
+      return remoteCall.call(resolve(port));
+    } catch (RemoteException e) {
+      invalidate(port, stub);
+      throw e;
+    }
+  }
+
+  public void put(Integer port, T stub) {
+    this.stubs.put(port, stub);
+  }
+
+  public void invalidate(Integer port) {
+    this.stubs.remove(port);
+  }
+
+  /**
+   * Pings every cached stub in the background with the given probe.
+   * A stub that fails the probe is invalidated and looked up again.
+   */
+  public synchronized void startHealthChecks(RemoteCall<T, ?> probe) {
+    if (this.healthChecker != null) {
+      return;
+    }
+    this.healthChecker = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+      Thread thread = new Thread(runnable, "stub-health-check-" + this.bindingName);
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.healthChecker.scheduleWithFixedDelay(() -> checkHealth(probe),
+        HEALTH_CHECK_MILLIS, HEALTH_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  public synchronized void shutdown() {
+    if (this.healthChecker != null) {
+      this.healthChecker.shutdownNow();
+      this.healthChecker = null;
+    }
+  }
+
+  private void checkHealth(RemoteCall<T, ?> probe) {
+    this.stubs.forEach((port, stub) -> {
+      try {
+        probe.call(stub);
+      } catch (RemoteException | NotBoundException e) {
+        invalidate(port, stub);
+        try {
+          resolve(port);
+        } catch (RemoteException | NotBoundException unreachable) {
+          // Still down; the next request or health check will try again.
+        }
+      }
+    });
+  }
+
+  private T resolve(Integer port) throws RemoteException, NotBoundException {
+    T stub = Transport.SELECTED.lookup(this.host, port, this.bindingName, this.type);
+    this.stubs.put(port, stub);
+    return stub;
+  }
+
+  // Only drops the entry if nobody has replaced it with a fresh stub in the meantime.
+  private void invalidate(Integer port, T stale) {
+    this.stubs.remove(port, stale);
+  }
+}
@@ -0,0 +1,229 @@
+package org.server;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A transaction as it travels between the servers and the coordinator, written in a compact
+ * binary form instead of through default serialization:
+ * [long msb][long lsb][long commit timestamp][long stable timestamp]
+ * [int participant count][int port...][int count][operations...], where an operation is
+ * [byte code][int key length][key][int value length or -1][value] with keys and values in UTF-8.
+ * Operations that are not a GET, PUT or DELETE are sent by name, so the participants can still
+ * reject them. Strings are encoded and decoded through a per-thread scratch buffer.
+ */
+public class TransactionMessage implements Externalizable {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final byte GET = 0;
+  private static final byte PUT = 1;
+  private static final byte DELETE = 2;
+  private static final byte OTHER = 3;
+
+  // Scratch buffers above this size are not kept, so one large value does not pin memory.
+  private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+  private static final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[256]);
+  // Counts and lengths are read off the wire, so a corrupt message is rejected before they are
+  // used to size anything; lists are only presized up to a few entries and grow as they fill.
+  private static final int MAX_OPERATIONS = 1 << 20;
+  private static final int MAX_STRING_BYTES = 64 * 1024 * 1024;
+  private static final int PRESIZED_ENTRIES = 64;
+
+  private UUID requestID;
+  private List<Operation> operations;
+  // Set by the coordinator on commits, 0 otherwise.
+  private long commitTimestamp;
+  // The coordinator's stable timestamp when it sent the message, 0 if it did not say.
+  private long stableTimestamp;
+  // The servers that write in the transaction, sent with prepares; empty if not known.
+  private List<Integer> participants;
+
+  // Only used by deserialization.
+  public TransactionMessage() {
+  }
+
+  public TransactionMessage(UUID requestID, List<Operation> operations) {
+    this(requestID, operations, 0, 0);
+  }
+
+  public TransactionMessage(UUID requestID, List<Operation> operations, long commitTimestamp,
+      long stableTimestamp) {
+    this(requestID, operations, commitTimestamp, stableTimestamp, Collections.emptyList());
+  }
+
+  public TransactionMessage(UUID requestID, List<Operation> operations, long commitTimestamp,
+      long stableTimestamp, Collection<Integer> participants) {
+    this.requestID = requestID;
+    this.operations = operations;
+    this.commitTimestamp = commitTimestamp;
+    this.stableTimestamp = stableTimestamp;
+    this.participants = new ArrayList<>(participants);
+  }
+
+  public UUID getRequestID() {
+    return requestID;
+  }
+
+  public List<Operation> getOperations() {
+    return operations;
+  }
+
+  public long getCommitTimestamp() {
+    return commitTimestamp;
+  }
+
+  public long getStableTimestamp() {
+    return stableTimestamp;
+  }
+
+  public List<Integer> getParticipants() {
+    return participants;
+  }
+
+  @Override
+  public void writeExternal(ObjectOutput out) throws IOException {
+    out.writeLong(this.requestID.getMostSignificantBits());
+    out.writeLong(this.requestID.getLeastSignificantBits());
+    out.writeLong(this.commitTimestamp);
+    out.writeLong(this.stableTimestamp);
+    out.writeInt(this.participants.size());
+    for (Integer participant : this.participants) {
+      out.writeInt(participant);
+    }
+    out.writeInt(this.operations.size());
+    for (Operation operation : this.operations) {
+      byte code = codeOf(operation.getOperation());
+      out.writeByte(code);
+      if (code == OTHER) {
+        writeString(out, operation.getOperation());
+      }
+      writeString(out, operation.getKey());
+      writeString(out, operation.getValue());
+    }
+  }
+
+  @Override
+  public void readExternal(ObjectInput in) throws IOException {
+    this.requestID = new UUID(in.readLong(), in.readLong());
+    this.commitTimestamp = in.readLong();
+    this.stableTimestamp = in.readLong();
+    int participantCount = readCount(in, VoteTracker.MAX_PARTICIPANTS, "participants");
+    List<Integer> participants = new ArrayList<>(participantCount);
+    for (int i = 0; i < participantCount; i++) {
+      participants.add(in.readInt());
+    }
+    this.participants = Collections.unmodifiableList(participants);
+    int count = readCount(in, MAX_OPERATIONS, "operations");
+    List<Operation> operations = new ArrayList<>(Math.min(count, PRESIZED_ENTRIES));
+    for (int i = 0; i < count; i++) {
+      byte code = in.readByte();
+      String name = code == OTHER ? readString(in) : nameOf(code);
+      operations.add(new Operation(name, readString(in), readString(in)));
+    }
+    this.operations = Collections.unmodifiableList(operations);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("Transaction %s %s", requestID, operations);
+  }
+
+  private static byte codeOf(String name) {
+    if (name == null) {
+      return OTHER;
+    }
+    if (name.equalsIgnoreCase("GET")) {
+      return GET;
+    }
+    if (name.equalsIgnoreCase("PUT")) {
+      return PUT;
+    }
+    return name.equalsIgnoreCase("DELETE") ? DELETE : OTHER;
+  }
+
+  private static String nameOf(byte code) {
+    return code == PUT ? "PUT" : code == DELETE ? "DELETE" : "GET";
+  }
+
+  // Encodes UTF-8 by hand into the scratch buffer; unpaired surrogates become '?' as in getBytes.
+  private static void writeString(ObjectOutput out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] buffer = scratchBuffer(value.length() * 3);
+    int length = 0;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        buffer[length++] = (byte) c;
+      } else if (c < 0x800) {
+        buffer[length++] = (byte) (0xc0 | (c >> 6));
+        buffer[length++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isSurrogate(c)) {
+        if (Character.isHighSurrogate(c) && i + 1 < value.length()
+            && Character.isLowSurrogate(value.charAt(i + 1))) {
+          int codePoint = Character.toCodePoint(c, value.charAt(++i));
+          buffer[length++] = (byte) (0xf0 | (codePoint >> 18));
+          buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+          buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+          buffer[length++] = (byte) (0x80 | (codePoint & 0x3f));
+        } else {
+          buffer[length++] = '?';
+        }
+      } else {
+        buffer[length++] = (byte) (0xe0 | (c >> 12));
+        buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        buffer[length++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    out.writeInt(length);
+    out.write(buffer, 0, length);
+  }
+
+  private static int readCount(ObjectInput in, int max, String what) throws IOException {
+    int count = in.readInt();
+    if (count < 0 || count > max) {
+      throw new InvalidObjectException(String.format(
+          "Transaction message with %s %s, at most %s are allowed.", count, what, max));
+    }
+    return count;
+  }
+
+  private static String readString(ObjectInput in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    if (length > MAX_STRING_BYTES) {
+      throw new InvalidObjectException(String.format(
+          "Transaction message with a string of %s bytes, at most %s are allowed.",
+          length, MAX_STRING_BYTES));
+    }
+    byte[] buffer = scratchBuffer(length);
+    in.readFully(buffer, 0, length);
+    return new String(buffer, 0, length, StandardCharsets.UTF_8);
+  }
+
+  private static byte[] scratchBuffer(int length) {
+    byte[] buffer = scratch.get();
+    if (buffer.length >= length) {
+      return buffer;
+    }
+    buffer = new byte[Math.max(length, buffer.length * 2)];
+    if (buffer.length <= MAX_RETAINED_BUFFER) {
+      scratch.set(buffer);
+    }
+    return buffer;
+  }
+}
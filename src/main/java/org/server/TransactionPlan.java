@@ -0,0 +1,91 @@
+package org.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Splits the operations of a transaction between the servers that own their keys.
+ * Each participant is only sent the operations on keys it owns, in their original order, and
+ * the result of every operation is taken from its key's primary owner.
+ */
+class TransactionPlan {
+
+  private final Map<Integer, List<Operation>> operationsByParticipant = new LinkedHashMap<>();
+  private final Map<Integer, List<Integer>> indicesByParticipant = new LinkedHashMap<>();
+  private final List<Operation> operations;
+  private final Integer[] primaryOwners;
+
+  TransactionPlan(HashRing ring, List<Operation> operations) {
+    this.operations = operations;
+    this.primaryOwners = new Integer[operations.size()];
+    for (int i = 0; i < operations.size(); i++) {
+      List<Integer> owners = ring.ownersOf(operations.get(i).getKey());
+      this.primaryOwners[i] = owners.get(0);
+      for (Integer owner : owners) {
+        this.operationsByParticipant.computeIfAbsent(owner, (port) -> new ArrayList<>())
+            .add(operations.get(i));
+        this.indicesByParticipant.computeIfAbsent(owner, (port) -> new ArrayList<>()).add(i);
+      }
+    }
+  }
+
+  int getOperationCount() {
+    return this.operations.size();
+  }
+
+  Operation getOperation(int index) {
+    return this.operations.get(index);
+  }
+
+  Set<Integer> getParticipants() {
+    return this.operationsByParticipant.keySet();
+  }
+
+  // The participants with writes to commit; the others vote read-only and are then done.
+  Set<Integer> getWriters() {
+    Set<Integer> writers = new LinkedHashSet<>();
+    this.operationsByParticipant.forEach((participant, participantOperations) -> {
+      if (participantOperations.stream().anyMatch(Operation::isWrite)) {
+        writers.add(participant);
+      }
+    });
+    return writers;
+  }
+
+  List<Operation> operationsFor(Integer participant) {
+    return this.operationsByParticipant.get(participant);
+  }
+
+  // Puts the results each participant reported for its operations back into transaction order,
+  // taking each from the primary owner of its key where it reported.
+  List<String> mergeResults(Map<Integer, List<String>> resultsByParticipant) {
+    if (resultsByParticipant.isEmpty()) {
+      return Collections.emptyList();
+    }
+    String[] results = new String[this.primaryOwners.length];
+    boolean[] fromPrimary = new boolean[this.primaryOwners.length];
+    resultsByParticipant.forEach((participant, participantResults) -> {
+      List<Integer> indices = this.indicesByParticipant.get(participant);
+      if (indices == null || participantResults.size() != indices.size()) {
+        return;
+      }
+      for (int i = 0; i < indices.size(); i++) {
+        int index = indices.get(i);
+        // Another replica's result stands in for a primary owner that did not report one.
+        if (participant.equals(this.primaryOwners[index])) {
+          results[index] = participantResults.get(i);
+          fromPrimary[index] = true;
+        } else if (!fromPrimary[index] && results[index] == null) {
+          results[index] = participantResults.get(i);
+        }
+      }
+    });
+    return Arrays.asList(results);
+  }
+}
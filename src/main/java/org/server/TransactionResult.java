@@ -0,0 +1,96 @@
+package org.server;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The outcome of a transaction, with one result per operation in the order they were sent.
+ * A GET yields the value it read, a PUT or DELETE yields the value it replaced; either is null
+ * when the key was absent. Results are only filled in when the transaction committed.
+ * The timestamp is the commit timestamp of a write, or the snapshot a read-only transaction
+ * read at, and 0 when there is none. A transaction that did not commit carries the reason
+ * each participant, or the coordinator under its own port, gave for it.
+ * COMMITTED is reported once the decision to commit stands, even while a participant that was
+ * slow or failed still has to apply it; COMMIT_FAILED means the outcome is not known.
+ */
+public class TransactionResult implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  public enum Status {
+    COMMITTED,
+    PREPARE_FAILED,
+    COMMIT_FAILED
+  }
+
+  private final UUID requestID;
+  private final Status status;
+  private final List<String> results;
+  private final long timestamp;
+  private final Map<Integer, AbortReason> abortReasons;
+
+  public TransactionResult(UUID requestID, Status status, List<String> results) {
+    this(requestID, status, results, 0);
+  }
+
+  public TransactionResult(UUID requestID, Status status, List<String> results, long timestamp) {
+    this(requestID, status, results, timestamp, null);
+  }
+
+  public TransactionResult(UUID requestID, Status status, Map<Integer, AbortReason> abortReasons) {
+    this(requestID, status, null, 0, abortReasons);
+  }
+
+  private TransactionResult(UUID requestID, Status status, List<String> results, long timestamp,
+      Map<Integer, AbortReason> abortReasons) {
+    this.requestID = requestID;
+    this.status = status;
+    this.results = results == null ? Collections.emptyList() : results;
+    this.timestamp = timestamp;
+    this.abortReasons = abortReasons == null ? Collections.emptyMap() : abortReasons;
+  }
+
+  public UUID getRequestID() {
+    return requestID;
+  }
+
+  public Status getStatus() {
+    return status;
+  }
+
+  public boolean isCommitted() {
+    return status == Status.COMMITTED;
+  }
+
+  public List<String> getResults() {
+    return results;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public Map<Integer, AbortReason> getAbortReasons() {
+    return abortReasons;
+  }
+
+  // The part of a batched result that belongs to one of the requests in the batch.
+  TransactionResult slice(UUID requestID, int fromIndex, int toIndex) {
+    List<String> slicedResults = this.results.size() >= toIndex
+        ? new ArrayList<>(this.results.subList(fromIndex, toIndex))
+        : Collections.emptyList();
+    return new TransactionResult(requestID, this.status, slicedResults, this.timestamp,
+        this.abortReasons);
+  }
+
+  @Override
+  public String toString() {
+    return abortReasons.isEmpty()
+        ? String.format("Transaction %s %s %s", requestID, status, results)
+        : String.format("Transaction %s %s %s", requestID, status, abortReasons);
+  }
+}
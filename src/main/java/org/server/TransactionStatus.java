@@ -0,0 +1,48 @@
+package org.server;
+
+import java.io.Serializable;
+
+/**
+ * What a participant knows about a transaction, as it answers a peer that is in doubt about it.
+ */
+public class TransactionStatus implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  public enum State {
+    // Prepared and waiting for the decision, like the peer asking.
+    PREPARED,
+    COMMITTED,
+    // Aborted, voted no, or never prepared and now refuses to.
+    ABORTED,
+    // No record of it, which says nothing if this server is not known to take part.
+    UNKNOWN
+  }
+
+  static final TransactionStatus PREPARED = new TransactionStatus(State.PREPARED, 0);
+  static final TransactionStatus ABORTED = new TransactionStatus(State.ABORTED, 0);
+  static final TransactionStatus UNKNOWN = new TransactionStatus(State.UNKNOWN, 0);
+
+  private final State state;
+  // The timestamp the transaction committed at, 0 unless it is committed.
+  private final long commitTimestamp;
+
+  public TransactionStatus(State state, long commitTimestamp) {
+    this.state = state;
+    this.commitTimestamp = commitTimestamp;
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  public long getCommitTimestamp() {
+    return commitTimestamp;
+  }
+
+  @Override
+  public String toString() {
+    return state == State.COMMITTED ? String.format("%s at %s", state, commitTimestamp)
+        : state.toString();
+  }
+}
@@ -0,0 +1,87 @@
+package org.server;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The coordinator's in-flight transactions, keyed by request ID, each holding the VoteTracker
+ * of the phase it is in. A round removes its entry when it finishes; entries whose deadline has
+ * passed are evicted whenever the table reaches its size limit, and a new transaction is turned
+ * away if the table is still full after that. A new transaction reserves its entry with a
+ * compare-and-set on the entry count, so concurrent rounds never take the table past maxEntries;
+ * only a decided commit whose prepare entry was evicted may take one more, see advance.
+ */
+class TransactionTable {
+
+  private final Map<UUID, VoteTracker> entries = new ConcurrentHashMap<>();
+  private final AtomicInteger count = new AtomicInteger();
+  private final int maxEntries;
+
+  TransactionTable(int maxEntries) {
+    this.maxEntries = maxEntries;
+  }
+
+  // Starts tracking a new transaction; returns false if the table is full.
+  boolean begin(VoteTracker tracker) {
+    if (!reserve()) {
+      evictExpired();
+      if (!reserve()) {
+        return false;
+      }
+    }
+    if (this.entries.put(tracker.getRequestID(), tracker) != null) {
+      // The transaction was tracked already and keeps its entry.
+      this.count.decrementAndGet();
+    }
+    return true;
+  }
+
+  // Moves a tracked transaction to the tracker of its next phase, whatever the size limit.
+  void advance(VoteTracker tracker) {
+    if (this.entries.put(tracker.getRequestID(), tracker) == null) {
+      this.count.incrementAndGet();
+    }
+  }
+
+  private boolean reserve() {
+    int current = this.count.get();
+    while (current < this.maxEntries) {
+      if (this.count.compareAndSet(current, current + 1)) {
+        return true;
+      }
+      current = this.count.get();
+    }
+    return false;
+  }
+
+  // The tracker of the transaction if it is in the given phase, otherwise null.
+  VoteTracker get(UUID requestID, VoteTracker.Phase phase) {
+    VoteTracker tracker = this.entries.get(requestID);
+    return tracker != null && tracker.getPhase() == phase ? tracker : null;
+  }
+
+  // Stops tracking the transaction, unless it has already moved on to another tracker.
+  void finish(VoteTracker tracker) {
+    if (this.entries.remove(tracker.getRequestID(), tracker)) {
+      this.count.decrementAndGet();
+    }
+  }
+
+  int evictExpired() {
+    long now = System.nanoTime();
+    int evicted = 0;
+    for (VoteTracker tracker : this.entries.values()) {
+      if (tracker.isExpired(now) && this.entries.remove(tracker.getRequestID(), tracker)) {
+        this.count.decrementAndGet();
+        evicted++;
+      }
+    }
+    return evicted;
+  }
+
+  int size() {
+    return this.count.get();
+  }
+}
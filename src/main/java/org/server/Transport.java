@@ -0,0 +1,27 @@
+package org.server;
+
+import java.io.IOException;
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * How the servers, the coordinator and the client reach each other. Objects are exported
+ * under a binding name on a port and looked up by the same name and port, so the remote
+ * interfaces stay the same whichever transport carries the calls.
+ * Selected with -Dtwopc.transport: rmi (default) or nio. Every process must use the same one.
+ */
+interface Transport {
+
+  // Makes the object callable under the name on the port, starting a listener there if needed.
+  void export(Integer port, String bindingName, Remote object) throws IOException;
+
+  // Returns a stub implementing the interface that forwards calls to the object bound remotely.
+  <T extends Remote> T lookup(String host, Integer port, String bindingName, Class<T> type)
+      throws RemoteException, NotBoundException;
+
+  // The transport of this process, chosen once from the system property.
+  Transport SELECTED = "nio".equalsIgnoreCase(System.getProperty("twopc.transport", "rmi"))
+      ? new NioTransport()
+      : new RmiTransport();
+}
@@ -0,0 +1,311 @@
+package org.server;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Multi-version key value store. Every key maps to a chain of versions, newest first, each
+ * stamped with the commit timestamp of the transaction that wrote it; a DELETE writes a
+ * tombstone. Reads at a timestamp walk the chain to the newest version no later than it and
+ * never block. Writers to a key are serialized by its lock, so chains mostly grow at the head;
+ * a write older than the head is put in its place in the chain.
+ * Versions older than what any allowed snapshot can see are dropped by collectGarbage.
+ * Every change of a key's newest version is reported to the head listeners.
+ */
+class VersionedStore implements KeyValueStore {
+
+  private static final class Version {
+    private final long timestamp;
+    // Null for a tombstone.
+    private final String value;
+    private volatile Version older;
+
+    Version(long timestamp, String value, Version older) {
+      this.timestamp = timestamp;
+      this.value = value;
+      this.older = older;
+    }
+  }
+
+  private final Map<String, Version> versions = new ConcurrentHashMap<>();
+  // Every key in versions, in order, for keysFrom.
+  private final NavigableSet<String> orderedKeys = new ConcurrentSkipListSet<>();
+  private final AtomicInteger liveKeys = new AtomicInteger();
+  private final Map<String, String> latest = new LatestView();
+  private final List<HeadListener> headListeners = new CopyOnWriteArrayList<>();
+
+  @Override
+  public void addHeadListener(HeadListener headListener) {
+    this.headListeners.add(headListener);
+  }
+
+  @Override
+  public String get(String key) {
+    Version head = this.versions.get(key);
+    return head == null ? null : head.value;
+  }
+
+  @Override
+  public String getAt(String key, long timestamp) {
+    Version version = versionOf(key, timestamp);
+    return version == null ? null : version.value;
+  }
+
+  @Override
+  public KeyVersion versionAt(String key, long timestamp) {
+    Version version = versionOf(key, timestamp);
+    return version == null ? null : new KeyVersion(key, version.value, version.timestamp);
+  }
+
+  private Version versionOf(String key, long timestamp) {
+    Version version = this.versions.get(key);
+    while (version != null && version.timestamp > timestamp) {
+      version = version.older;
+    }
+    return version;
+  }
+
+  @Override
+  public String put(String key, String value, long timestamp) {
+    return write(key, value, timestamp);
+  }
+
+  @Override
+  public String remove(String key, long timestamp) {
+    return write(key, null, timestamp);
+  }
+
+  @Override
+  public KeyVersion headOf(String key) {
+    Version head = this.versions.get(key);
+    return head == null ? null : new KeyVersion(key, head.value, head.timestamp);
+  }
+
+  @Override
+  public List<KeyVersion> heads(Predicate<String> keys) {
+    List<KeyVersion> heads = new ArrayList<>();
+    this.versions.forEach((key, head) -> {
+      if (keys.test(key)) {
+        heads.add(new KeyVersion(key, head.value, head.timestamp));
+      }
+    });
+    return heads;
+  }
+
+  @Override
+  public boolean repair(KeyVersion version) {
+    String key = version.getKey();
+    KeyVersion[] replaced = new KeyVersion[1];
+    boolean[] applied = new boolean[1];
+    this.versions.compute(key, (ignored, head) -> {
+      if (head == null) {
+        applied[0] = true;
+        return new Version(version.getTimestamp(), version.getValue(), null);
+      }
+      KeyVersion current = new KeyVersion(key, head.value, head.timestamp);
+      if (!version.beats(current)) {
+        return head;
+      }
+      applied[0] = true;
+      replaced[0] = current;
+      return head.timestamp == version.getTimestamp()
+          ? new Version(head.timestamp, version.getValue(), head.older)
+          : new Version(version.getTimestamp(), version.getValue(), head);
+    });
+    if (applied[0]) {
+      changed(key, replaced[0] == null ? null : replaced[0].getValue(),
+          replaced[0] == null ? 0 : replaced[0].digest(), version.getValue(), version.digest());
+    }
+    return applied[0];
+  }
+
+  @Override
+  public Iterator<String> keysFrom(String start, boolean inclusive) {
+    return this.orderedKeys.tailSet(start, inclusive).iterator();
+  }
+
+  @Override
+  public int size() {
+    return this.liveKeys.get();
+  }
+
+  @Override
+  public int collectGarbage(long horizon) {
+    int dropped = 0;
+    for (Map.Entry<String, Version> entry : this.versions.entrySet()) {
+      Version head = entry.getValue();
+      Version base = head;
+      while (base != null && base.timestamp > horizon) {
+        base = base.older;
+      }
+      if (base == null) {
+        continue;
+      }
+      for (Version older = base.older; older != null; older = older.older) {
+        dropped++;
+      }
+      base.older = null;
+      if (base == head && base.value == null && this.versions.remove(entry.getKey(), head)) {
+        dropped++;
+        headChanged(entry.getKey(),
+            KeyVersion.digestOf(entry.getKey(), null, head.timestamp), 0);
+      }
+    }
+    return dropped;
+  }
+
+  @Override
+  public Map<String, String> latest() {
+    return this.latest;
+  }
+
+  private String write(String key, String value, long timestamp) {
+    Version[] heads = new Version[2];
+    String[] replaced = new String[1];
+    this.versions.compute(key, (ignored, head) -> {
+      heads[0] = head;
+      if (head != null && head.timestamp > timestamp) {
+        // A later commit got here first, so this one only joins the history below it.
+        replaced[0] = insertBelow(head, value, timestamp);
+        heads[1] = head;
+        return head;
+      }
+      // Operations of one transaction share its timestamp and the last one wins.
+      heads[1] = head == null
+          ? new Version(timestamp, value, null)
+          : head.timestamp == timestamp
+              ? new Version(timestamp, value, head.older)
+              : new Version(timestamp, value, head);
+      return heads[1];
+    });
+    Version old = heads[0];
+    if (old == heads[1]) {
+      return replaced[0];
+    }
+    changed(key, old == null ? null : old.value,
+        old == null ? 0 : KeyVersion.digestOf(key, old.value, old.timestamp),
+        value, KeyVersion.digestOf(key, value, heads[1].timestamp));
+    return old == null ? null : old.value;
+  }
+
+  // Called inside compute for the key. Returns the value the version replaces at its timestamp.
+  private static String insertBelow(Version newer, String value, long timestamp) {
+    while (newer.older != null && newer.older.timestamp > timestamp) {
+      newer = newer.older;
+    }
+    Version older = newer.older;
+    newer.older = older != null && older.timestamp == timestamp
+        ? new Version(timestamp, value, older.older)
+        : new Version(timestamp, value, older);
+    return older == null ? null : older.value;
+  }
+
+  // Digests are 0 for no version.
+  private void changed(String key, String oldValue, long oldDigest, String newValue,
+      long newDigest) {
+    if (oldValue == null && newValue != null) {
+      this.liveKeys.incrementAndGet();
+    } else if (oldValue != null && newValue == null) {
+      this.liveKeys.decrementAndGet();
+    }
+    headChanged(key, oldDigest, newDigest);
+  }
+
+  private void headChanged(String key, long oldDigest, long newDigest) {
+    if (newDigest != 0) {
+      this.orderedKeys.add(key);
+    } else {
+      // A write that brings the key back has stored its head before it gets here, so the check
+      // after the removal cannot miss it.
+      this.orderedKeys.remove(key);
+      if (this.versions.containsKey(key)) {
+        this.orderedKeys.add(key);
+      }
+    }
+    for (HeadListener headListener : this.headListeners) {
+      headListener.headChanged(key, oldDigest, newDigest);
+    }
+  }
+
+  private class LatestView extends AbstractMap<String, String> {
+
+    @Override
+    public String get(Object key) {
+      return VersionedStore.this.get((String) key);
+    }
+
+    @Override
+    public String put(String key, String value) {
+      return VersionedStore.this.put(key, value, 0);
+    }
+
+    @Override
+    public int size() {
+      return VersionedStore.this.size();
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+      return new AbstractSet<Map.Entry<String, String>>() {
+        @Override
+        public Iterator<Map.Entry<String, String>> iterator() {
+          return new LiveIterator(versions.entrySet().iterator());
+        }
+
+        @Override
+        public int size() {
+          return VersionedStore.this.size();
+        }
+      };
+    }
+  }
+
+  // Skips keys whose newest version is a tombstone.
+  private static class LiveIterator implements Iterator<Map.Entry<String, String>> {
+    private final Iterator<Map.Entry<String, Version>> versions;
+    private Map.Entry<String, String> next;
+
+    LiveIterator(Iterator<Map.Entry<String, Version>> versions) {
+      this.versions = versions;
+      advance();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return this.next != null;
+    }
+
+    @Override
+    public Map.Entry<String, String> next() {
+      if (this.next == null) {
+        throw new NoSuchElementException();
+      }
+      Map.Entry<String, String> current = this.next;
+      advance();
+      return current;
+    }
+
+    private void advance() {
+      this.next = null;
+      while (this.next == null && this.versions.hasNext()) {
+        Map.Entry<String, Version> entry = this.versions.next();
+        String value = entry.getValue().value;
+        if (value != null) {
+          this.next = new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), value);
+        }
+      }
+    }
+  }
+}
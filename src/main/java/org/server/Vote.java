@@ -0,0 +1,101 @@
+package org.server;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The reply of a single participant to a prepare or commit request.
+ * Returned inline by IParticipant so the coordinator does not need a callback per vote.
+ */
+public class Vote implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  public enum Decision {
+    PREPARED,
+    // The participant did no writes, already returned its reads and is done with the transaction.
+    READ_ONLY,
+    COMMITTED,
+    ABORTED
+  }
+
+  private final Integer port;
+  private final UUID requestID;
+  private final Decision decision;
+  private final String message;
+  // One result per operation, filled in by a successful commit or a read-only vote.
+  private final List<String> results;
+  // Why the participant voted to abort; null for any other decision.
+  private final AbortReason reason;
+  // The participant's clock once prepared, or the timestamp it committed at; 0 if not known.
+  private final long timestamp;
+
+  public Vote(Integer port, UUID requestID, Decision decision, String message) {
+    this(port, requestID, decision, message, Collections.emptyList());
+  }
+
+  public Vote(Integer port, UUID requestID, Decision decision, String message,
+      List<String> results) {
+    this(port, requestID, decision, message, results, 0);
+  }
+
+  public Vote(Integer port, UUID requestID, Decision decision, String message,
+      List<String> results, long timestamp) {
+    this.port = port;
+    this.requestID = requestID;
+    this.decision = decision;
+    this.message = message;
+    this.results = results;
+    this.reason = null;
+    this.timestamp = timestamp;
+  }
+
+  public Vote(Integer port, UUID requestID, AbortReason reason, String message) {
+    this.port = port;
+    this.requestID = requestID;
+    this.decision = Decision.ABORTED;
+    this.message = message;
+    this.results = Collections.emptyList();
+    this.reason = reason;
+    this.timestamp = 0;
+  }
+
+  public Integer getPort() {
+    return port;
+  }
+
+  public UUID getRequestID() {
+    return requestID;
+  }
+
+  public Decision getDecision() {
+    return decision;
+  }
+
+  public String getMessage() {
+    return message;
+  }
+
+  public List<String> getResults() {
+    return results;
+  }
+
+  public AbortReason getReason() {
+    return reason;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public boolean isYes() {
+    return decision != Decision.ABORTED;
+  }
+
+  @Override
+  public String toString() {
+    return message;
+  }
+}
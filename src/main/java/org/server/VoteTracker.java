@@ -0,0 +1,229 @@
+package org.server;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Collects the votes of every participant for a single phase of a single transaction.
+ * The coordinator thread parks in awaitDecision until the last expected participant has voted,
+ * one of them has voted to abort or the timeout passes, instead of polling the response maps.
+ * Each participant is a bit at its position in the expected ports, so recording and checking
+ * a vote is a scan of at most 64 ints and a compare-and-set.
+ */
+class VoteTracker {
+
+  enum Phase {
+    PREPARE,
+    COMMIT
+  }
+
+  static final int MAX_PARTICIPANTS = Long.SIZE;
+
+  private final UUID requestID;
+  private final Phase phase;
+  private final long deadlineNanos;
+  private final int[] expectedPorts;
+  private final AtomicLong votedBits = new AtomicLong();
+  private final AtomicLong abortedBits = new AtomicLong();
+  private final AtomicLong readOnlyBits = new AtomicLong();
+  private final CountDownLatch remainingVotes;
+  // Opened by the last vote or by the first vote to abort, whichever comes first.
+  private final CountDownLatch decided = new CountDownLatch(1);
+  // Per-operation results reported by each participant for the operations it was sent.
+  private final AtomicReferenceArray<List<String>> results;
+  private final AtomicReferenceArray<AbortReason> abortReasons;
+
+  VoteTracker(UUID requestID, Phase phase, Collection<Integer> expectedPorts, long timeout,
+      TimeUnit unit) {
+    Set<Integer> ports = new LinkedHashSet<>(expectedPorts);
+    if (ports.size() > MAX_PARTICIPANTS) {
+      throw new IllegalArgumentException(String.format(
+          "Transaction %s has %s participants, at most %s are supported.",
+          requestID, ports.size(), MAX_PARTICIPANTS));
+    }
+    this.requestID = requestID;
+    this.phase = phase;
+    this.deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+    this.expectedPorts = new int[ports.size()];
+    int index = 0;
+    for (Integer port : ports) {
+      this.expectedPorts[index++] = port;
+    }
+    this.remainingVotes = new CountDownLatch(this.expectedPorts.length);
+    this.results = new AtomicReferenceArray<>(this.expectedPorts.length);
+    this.abortReasons = new AtomicReferenceArray<>(this.expectedPorts.length);
+    if (this.expectedPorts.length == 0) {
+      this.decided.countDown();
+    }
+  }
+
+  UUID getRequestID() {
+    return requestID;
+  }
+
+  Phase getPhase() {
+    return phase;
+  }
+
+  boolean isExpired(long nowNanos) {
+    return nowNanos - this.deadlineNanos > 0;
+  }
+
+  // Returns false if the port is not a participant or has already voted.
+  boolean recordVote(Integer port) {
+    return recordVote(port, null);
+  }
+
+  // A participant that failed, could not be reached or timed out votes to abort.
+  boolean recordAbort(Integer port, AbortReason reason) {
+    return recordVote(port, reason);
+  }
+
+  private boolean recordVote(Integer port, AbortReason abortReason) {
+    long bit = bitOf(port);
+    if (bit == 0 || !setBit(this.votedBits, bit)) {
+      return false;
+    }
+    if (abortReason != null) {
+      this.abortReasons.set(indexOf(port), abortReason);
+      setBit(this.abortedBits, bit);
+      this.decided.countDown();
+    }
+    remainingVotes.countDown();
+    if (remainingVotes.getCount() == 0) {
+      this.decided.countDown();
+    }
+    return true;
+  }
+
+  // A participant that did no writes reports its reads with its vote and skips the commit phase.
+  boolean recordReadOnlyVote(Integer port, List<String> results) {
+    long bit = bitOf(port);
+    if (bit == 0 || (this.votedBits.get() & bit) != 0) {
+      return false;
+    }
+    recordResults(port, results);
+    setBit(this.readOnlyBits, bit);
+    return recordVote(port);
+  }
+
+  void recordResults(Integer port, List<String> results) {
+    int index = indexOf(port);
+    if (index >= 0 && results != null) {
+      this.results.set(index, results);
+    }
+  }
+
+  // Results reported by the participants; empty if none did, as in callback mode.
+  Map<Integer, List<String>> getResults() {
+    Map<Integer, List<String>> reported = new HashMap<>();
+    for (int i = 0; i < this.expectedPorts.length; i++) {
+      List<String> participantResults = this.results.get(i);
+      if (participantResults != null) {
+        reported.put(this.expectedPorts[i], participantResults);
+      }
+    }
+    return reported;
+  }
+
+  // Blocks until every participant has voted, one has voted to abort or the timeout elapses.
+  boolean awaitDecision(long timeout, TimeUnit unit) throws InterruptedException {
+    return decided.await(timeout, unit);
+  }
+
+  boolean isDecided() {
+    return decided.getCount() == 0;
+  }
+
+  // Blocks until every participant has voted or the timeout elapses.
+  boolean awaitVotes(long timeout, TimeUnit unit) throws InterruptedException {
+    return remainingVotes.await(timeout, unit);
+  }
+
+  boolean hasAllVotes() {
+    return remainingVotes.getCount() == 0;
+  }
+
+  // True once every participant has voted and none of them voted to abort.
+  boolean isUnanimous() {
+    return hasAllVotes() && abortedBits.get() == 0;
+  }
+
+  Set<Integer> getAbortedPorts() {
+    return portsOf(this.abortedBits.get());
+  }
+
+  // Participants that have not voted yet.
+  Set<Integer> getMissingPorts() {
+    return portsOf(~this.votedBits.get() & (-1L >>> (Long.SIZE - this.expectedPorts.length)));
+  }
+
+  Map<Integer, AbortReason> getAbortReasons() {
+    Map<Integer, AbortReason> reasons = new HashMap<>();
+    for (int i = 0; i < this.expectedPorts.length; i++) {
+      AbortReason reason = this.abortReasons.get(i);
+      if (reason != null) {
+        reasons.put(this.expectedPorts[i], reason);
+      }
+    }
+    return reasons;
+  }
+
+  Set<Integer> getReadOnlyPorts() {
+    return portsOf(this.readOnlyBits.get());
+  }
+
+  private int indexOf(Integer port) {
+    if (port == null) {
+      return -1;
+    }
+    int value = port;
+    for (int i = 0; i < this.expectedPorts.length; i++) {
+      if (this.expectedPorts[i] == value) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  // The bit of the participant, or 0 if the port is not one.
+  private long bitOf(Integer port) {
+    int index = indexOf(port);
+    return index < 0 ? 0 : 1L << index;
+  }
+
+  // Returns false if the bit was already set.
+  private static boolean setBit(AtomicLong bits, long bit) {
+    long current = bits.get();
+    while ((current & bit) == 0) {
+      if (bits.compareAndSet(current, current | bit)) {
+        return true;
+      }
+      current = bits.get();
+    }
+    return false;
+  }
+
+  private Set<Integer> portsOf(long bits) {
+    if (bits == 0) {
+      return Collections.emptySet();
+    }
+    Set<Integer> ports = new LinkedHashSet<>();
+    for (int i = 0; i < this.expectedPorts.length; i++) {
+      if ((bits & (1L << i)) != 0) {
+        ports.add(this.expectedPorts[i]);
+      }
+    }
+    return ports;
+  }
+}
@@ -0,0 +1,395 @@
+package org.server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the prepare, commit, abort and repair records of one participant, also
+ * used by the coordinator for its commit decisions. Each record is written as
+ * [int length][int crc32][byte type][long msb][long lsb][int count][operations...]
+ * where an operation is [byte code][int key length][key][int value length or -1][value], with
+ * keys and values in UTF-8. A single writer thread drains every record queued while the
+ * previous flush was running and forces them to disk together, so concurrent transactions
+ * share one fsync instead of paying one each.
+ * The log is split into numbered segment files. Rolling starts a new segment, so older ones
+ * can be deleted once a snapshot or a compaction has made them redundant.
+ */
+class WriteAheadLog {
+
+  static final byte PREPARE = 1;
+  static final byte COMMIT = 2;
+  static final byte ABORT = 3;
+  // Written by the coordinator once every participant has acknowledged a commit.
+  static final byte END = 4;
+  // Versions copied from another replica by anti-entropy, as PUTs and DELETEs.
+  static final byte REPAIR = 5;
+
+  private static final byte GET = 0;
+  private static final byte PUT = 1;
+  private static final byte DELETE = 2;
+
+  private static final int HEADER_BYTES = 8;
+
+  // Called for every intact record, in log order, while the log is replayed.
+  interface RecordHandler {
+    void onRecord(byte type, UUID requestID, List<Operation> operations);
+  }
+
+  // A record carried over into a new segment by roll.
+  static class Record {
+    final byte type;
+    final UUID requestID;
+    final List<Operation> operations;
+
+    Record(byte type, UUID requestID, List<Operation> operations) {
+      this.type = type;
+      this.requestID = requestID;
+      this.operations = operations;
+    }
+  }
+
+  private static class PendingRecord {
+    final ByteBuffer bytes;
+    final Supplier<List<Record>> carriedOver;
+    final CompletableFuture<Void> durable = new CompletableFuture<>();
+    final CompletableFuture<Long> rolled = new CompletableFuture<>();
+
+    PendingRecord(ByteBuffer bytes, Supplier<List<Record>> carriedOver) {
+      this.bytes = bytes;
+      this.carriedOver = carriedOver;
+    }
+
+    void fail(Throwable cause) {
+      durable.completeExceptionally(cause);
+      rolled.completeExceptionally(cause);
+    }
+  }
+
+  private final Path basePath;
+  private FileChannel channel;
+  private long segment;
+  private final BlockingQueue<PendingRecord> pendingRecords = new LinkedBlockingQueue<>();
+  private final Thread writer;
+  private volatile boolean closed = false;
+
+  WriteAheadLog(Path basePath) throws IOException {
+    this.basePath = basePath.toAbsolutePath();
+    Files.createDirectories(this.basePath.getParent());
+    this.writer = new Thread(this::writeRecords, "wal-writer-" + basePath.getFileName());
+    this.writer.setDaemon(true);
+  }
+
+  /**
+   * Deletes the segments before the given one, then reads the rest in order and hands every
+   * intact record to the handler. A torn or corrupt tail left by a crash is cut off, then the
+   * writer starts appending after it. Returns the segment being appended to.
+   */
+  long replay(long fromSegment, RecordHandler handler) throws IOException {
+    deleteSegmentsBefore(fromSegment);
+    List<Long> segments = listSegments();
+    this.segment = segments.isEmpty() ? fromSegment : segments.get(segments.size() - 1);
+    for (Long replayed : segments) {
+      try (FileChannel in = FileChannel.open(segmentPath(replayed), StandardOpenOption.READ)) {
+        long end = replaySegment(in, handler);
+        if (replayed == this.segment) {
+          this.channel = FileChannel.open(segmentPath(replayed), StandardOpenOption.WRITE);
+          this.channel.truncate(end);
+          this.channel.position(end);
+        }
+      }
+    }
+    if (this.channel == null) {
+      this.channel = FileChannel.open(segmentPath(this.segment), StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE);
+    }
+    if (!this.writer.isAlive()) {
+      this.writer.start();
+    }
+    return this.segment;
+  }
+
+  // Queues the record; the future completes once it is on disk.
+  CompletableFuture<Void> append(byte type, UUID requestID, List<Operation> operations) {
+    PendingRecord record = new PendingRecord(encode(type, requestID, operations), null);
+    enqueue(record);
+    return record.durable;
+  }
+
+  /**
+   * Starts a new segment that begins with the records the source returns. The source is called
+   * on the writer thread once every record appended before this call is on disk, and records
+   * appended afterwards land in the new segment, so nothing falls between the two.
+   * The future completes with the number of the new segment.
+   */
+  CompletableFuture<Long> roll(Supplier<List<Record>> carriedOver) {
+    PendingRecord record = new PendingRecord(null, carriedOver);
+    enqueue(record);
+    return record.rolled;
+  }
+
+  // Replaces the log with the records the source returns, see roll.
+  CompletableFuture<Void> rewrite(Supplier<List<Record>> source) {
+    return roll(source).thenAccept((newSegment) -> {
+      try {
+        deleteSegmentsBefore(newSegment);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    });
+  }
+
+  void deleteSegmentsBefore(long firstKept) throws IOException {
+    for (Long old : listSegments()) {
+      if (old < firstKept) {
+        Files.deleteIfExists(segmentPath(old));
+      }
+    }
+  }
+
+  void close() throws IOException {
+    this.closed = true;
+    this.writer.interrupt();
+    if (this.channel != null) {
+      this.channel.close();
+    }
+  }
+
+  private void enqueue(PendingRecord record) {
+    if (this.closed) {
+      record.fail(new IOException("Log is closed: " + this.basePath));
+      return;
+    }
+    this.pendingRecords.add(record);
+  }
+
+  private void writeRecords() {
+    List<PendingRecord> batch = new ArrayList<>();
+    while (!this.closed) {
+      try {
+        batch.add(this.pendingRecords.take());
+      } catch (InterruptedException e) {
+        break;
+      }
+      this.pendingRecords.drainTo(batch);
+      int start = 0;
+      for (int i = 0; i < batch.size(); i++) {
+        PendingRecord roll = batch.get(i);
+        if (roll.carriedOver != null) {
+          flush(batch.subList(start, i));
+          startSegment(roll);
+          start = i + 1;
+        }
+      }
+      flush(batch.subList(start, batch.size()));
+      batch.clear();
+    }
+    PendingRecord record;
+    while ((record = this.pendingRecords.poll()) != null) {
+      record.fail(new IOException("Log is closed: " + this.basePath));
+    }
+  }
+
+  private void flush(List<PendingRecord> records) {
+    if (records.isEmpty()) {
+      return;
+    }
+    try {
+      ByteBuffer[] buffers = new ByteBuffer[records.size()];
+      for (int i = 0; i < buffers.length; i++) {
+        buffers[i] = records.get(i).bytes;
+      }
+      while (buffers[buffers.length - 1].hasRemaining()) {
+        this.channel.write(buffers);
+      }
+      this.channel.force(false);
+      records.forEach((record) -> record.durable.complete(null));
+    } catch (IOException e) {
+      records.forEach((record) -> record.fail(e));
+    }
+  }
+
+  private void startSegment(PendingRecord roll) {
+    long nextSegment = this.segment + 1;
+    FileChannel next = null;
+    try {
+      next = FileChannel.open(segmentPath(nextSegment), StandardOpenOption.CREATE,
+          StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+      for (Record record : roll.carriedOver.get()) {
+        ByteBuffer bytes = encode(record.type, record.requestID, record.operations);
+        while (bytes.hasRemaining()) {
+          next.write(bytes);
+        }
+      }
+      next.force(true);
+      this.channel.close();
+    } catch (IOException | RuntimeException e) {
+      closeQuietly(next);
+      roll.fail(e);
+      return;
+    }
+    this.channel = next;
+    this.segment = nextSegment;
+    roll.rolled.complete(nextSegment);
+  }
+
+  private long replaySegment(FileChannel in, RecordHandler handler) throws IOException {
+    long position = 0;
+    long size = in.size();
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    while (position + HEADER_BYTES <= size) {
+      header.clear();
+      readFully(in, header, position);
+      header.flip();
+      int length = header.getInt();
+      int checksum = header.getInt();
+      if (length <= 0 || position + HEADER_BYTES + length > size) {
+        break;
+      }
+      ByteBuffer body = ByteBuffer.allocate(length);
+      readFully(in, body, position + HEADER_BYTES);
+      if (crc(body.array(), length) != checksum) {
+        break;
+      }
+      body.flip();
+      decode(body, handler);
+      position += HEADER_BYTES + length;
+    }
+    return position;
+  }
+
+  private List<Long> listSegments() throws IOException {
+    String prefix = this.basePath.getFileName() + ".";
+    List<Long> segments = new ArrayList<>();
+    try (Stream<Path> files = Files.list(this.basePath.getParent())) {
+      files.map((file) -> file.getFileName().toString())
+          .filter((name) -> name.startsWith(prefix))
+          .map((name) -> name.substring(prefix.length()))
+          .filter((suffix) -> !suffix.isEmpty() && suffix.chars().allMatch(Character::isDigit))
+          .forEach((suffix) -> segments.add(Long.parseLong(suffix)));
+    }
+    Collections.sort(segments);
+    return segments;
+  }
+
+  private Path segmentPath(long segmentNumber) {
+    return this.basePath.resolveSibling(
+        String.format("%s.%08d", this.basePath.getFileName(), segmentNumber));
+  }
+
+  private static void closeQuietly(FileChannel channel) {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // Nothing more to do with a segment that failed to start.
+      }
+    }
+  }
+
+  private static ByteBuffer encode(byte type, UUID requestID, List<Operation> operations) {
+    List<byte[]> strings = new ArrayList<>(operations.size() * 2);
+    int length = 1 + 16 + 4;
+    for (Operation operation : operations) {
+      byte[] key = operation.getKey().getBytes(StandardCharsets.UTF_8);
+      byte[] value = operation.getValue() == null || !operation.getOperation()
+          .equalsIgnoreCase("PUT") ? null : operation.getValue().getBytes(StandardCharsets.UTF_8);
+      strings.add(key);
+      strings.add(value);
+      length += 1 + 4 + key.length + 4 + (value == null ? 0 : value.length);
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + length);
+    buffer.position(HEADER_BYTES);
+    buffer.put(type);
+    buffer.putLong(requestID.getMostSignificantBits());
+    buffer.putLong(requestID.getLeastSignificantBits());
+    buffer.putInt(operations.size());
+    for (int i = 0; i < operations.size(); i++) {
+      buffer.put(codeOf(operations.get(i)));
+      byte[] key = strings.get(2 * i);
+      byte[] value = strings.get(2 * i + 1);
+      buffer.putInt(key.length).put(key);
+      if (value == null) {
+        buffer.putInt(-1);
+      } else {
+        buffer.putInt(value.length).put(value);
+      }
+    }
+    buffer.putInt(0, length);
+    buffer.putInt(4, crc(buffer.array(), HEADER_BYTES, length));
+    buffer.flip();
+    return buffer;
+  }
+
+  private static void decode(ByteBuffer body, RecordHandler handler) {
+    byte type = body.get();
+    UUID requestID = new UUID(body.getLong(), body.getLong());
+    int count = body.getInt();
+    List<Operation> operations = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      byte code = body.get();
+      String key = readString(body);
+      String value = readString(body);
+      operations.add(new Operation(nameOf(code), key, value));
+    }
+    handler.onRecord(type, requestID, operations);
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0) {
+      return null;
+    }
+    String string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+        StandardCharsets.UTF_8);
+    buffer.position(buffer.position() + length);
+    return string;
+  }
+
+  private static byte codeOf(Operation operation) {
+    if (operation.getOperation().equalsIgnoreCase("PUT")) {
+      return PUT;
+    }
+    if (operation.getOperation().equalsIgnoreCase("DELETE")) {
+      return DELETE;
+    }
+    return GET;
+  }
+
+  private static String nameOf(byte code) {
+    return code == PUT ? "PUT" : code == DELETE ? "DELETE" : "GET";
+  }
+
+  private void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (in.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of log: " + this.basePath);
+      }
+    }
+  }
+
+  private static int crc(byte[] bytes, int length) {
+    return crc(bytes, 0, length);
+  }
+
+  private static int crc(byte[] bytes, int offset, int length) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes, offset, length);
+    return (int) crc.getValue();
+  }
+}
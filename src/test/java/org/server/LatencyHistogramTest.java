@@ -0,0 +1,77 @@
+package org.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void emptyHistogramReportsZero() {
+    LatencyHistogram histogram = new LatencyHistogram();
+
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getPercentile(99));
+    assertEquals(0, histogram.getMean(), 0);
+  }
+
+  @Test
+  public void smallValuesAreExact() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int value = 1; value <= 10; value++) {
+      histogram.record(value);
+    }
+
+    assertEquals(5, histogram.getPercentile(50));
+    assertEquals(10, histogram.getPercentile(100));
+    assertEquals(1, histogram.getPercentile(0));
+  }
+
+  @Test
+  public void percentilesAreWithinOneSixteenthAbove() {
+    Random random = new Random(7);
+    long[] values = new long[100000];
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 0; i < values.length; i++) {
+      // Log-uniform from 1 µs to about 1 s, like request latencies.
+      values[i] = (long) (1000 * Math.pow(1000000, random.nextDouble()));
+      histogram.record(values[i]);
+    }
+    Arrays.sort(values);
+
+    for (double percentile : new double[] {1, 50, 90, 99, 99.9, 99.99}) {
+      long exact = values[(int) Math.ceil(values.length * percentile / 100.0) - 1];
+      long reported = histogram.getPercentile(percentile);
+      assertTrue(percentile + ": " + reported + " below " + exact, reported >= exact);
+      assertTrue(percentile + ": " + reported + " too far above " + exact,
+          reported <= exact + exact / 16);
+    }
+    assertEquals(values[values.length - 1], histogram.getPercentile(100));
+    assertEquals(values[values.length - 1], histogram.getMax());
+    assertEquals(values.length, histogram.getCount());
+  }
+
+  @Test
+  public void coversTheWholeRange() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(-5);
+    histogram.record(Long.MAX_VALUE);
+
+    assertEquals(0, histogram.getPercentile(50));
+    assertEquals(Long.MAX_VALUE, histogram.getPercentile(100));
+  }
+
+  @Test
+  public void resetForgetsEverything() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(1000);
+    histogram.reset();
+
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMax());
+    assertEquals(0, histogram.getPercentile(50));
+  }
+}
@@ -0,0 +1,147 @@
+package org.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import org.junit.Test;
+
+public class TransactionMessageTest {
+
+  @Test
+  public void roundTripsEveryField() throws Exception {
+    UUID requestID = UUID.randomUUID();
+    List<Operation> operations = Arrays.asList(new Operation("PUT", "key", "välue 😀"),
+        new Operation("delete", "gone", null), new Operation("GET", "", ""),
+        new Operation("SCAN", "other", "kept by name"));
+    TransactionMessage sent = new TransactionMessage(requestID, operations, 42, 41,
+        Arrays.asList(10001, 10003));
+
+    TransactionMessage received = roundTrip(sent);
+
+    assertEquals(requestID, received.getRequestID());
+    assertEquals(42, received.getCommitTimestamp());
+    assertEquals(41, received.getStableTimestamp());
+    assertEquals(Arrays.asList(10001, 10003), received.getParticipants());
+    assertEquals(operations.size(), received.getOperations().size());
+    assertOperation("PUT", "key", "välue 😀", received.getOperations().get(0));
+    assertOperation("DELETE", "gone", null, received.getOperations().get(1));
+    assertOperation("GET", "", "", received.getOperations().get(2));
+    assertOperation("SCAN", "other", "kept by name", received.getOperations().get(3));
+  }
+
+  @Test
+  public void replacesUnpairedSurrogates() throws Exception {
+    TransactionMessage received = roundTrip(new TransactionMessage(UUID.randomUUID(),
+        Collections.singletonList(new Operation("PUT", "a\uD800b", "\uDC00"))));
+
+    assertOperation("PUT", "a?b", "?", received.getOperations().get(0));
+  }
+
+  @Test
+  public void roundTripsLongStrings() throws Exception {
+    char[] value = new char[100 * 1024];
+    Arrays.fill(value, 'é');
+    TransactionMessage received = roundTrip(new TransactionMessage(UUID.randomUUID(),
+        Collections.singletonList(new Operation("PUT", "k", new String(value)))));
+
+    assertEquals(new String(value), received.getOperations().get(0).getValue());
+  }
+
+  @Test
+  public void rejectsTooManyParticipants() throws Exception {
+    assertRejected(header(VoteTracker.MAX_PARTICIPANTS + 1));
+  }
+
+  @Test
+  public void rejectsNegativeOperationCount() throws Exception {
+    assertRejected(concat(header(0), ints(-1)));
+  }
+
+  @Test
+  public void rejectsOperationCountBeforeAllocating() throws Exception {
+    assertRejected(concat(header(0), ints(Integer.MAX_VALUE)));
+  }
+
+  @Test
+  public void rejectsOversizedString() throws Exception {
+    // One PUT whose key claims 1 GB.
+    assertRejected(concat(header(0), ints(1), new byte[] {1}, ints(1 << 30)));
+  }
+
+  private static TransactionMessage roundTrip(TransactionMessage message) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(message);
+    }
+    try (ObjectInputStream in = new ObjectInputStream(
+        new ByteArrayInputStream(bytes.toByteArray()))) {
+      return (TransactionMessage) in.readObject();
+    }
+  }
+
+  // Reads raw message bytes as readExternal would find them on the wire.
+  private static void assertRejected(byte[] body) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.write(body);
+    }
+    try (ObjectInputStream in = new ObjectInputStream(
+        new ByteArrayInputStream(bytes.toByteArray()))) {
+      new TransactionMessage().readExternal(in);
+      fail("Accepted a corrupt transaction message.");
+    } catch (InvalidObjectException expected) {
+      // Rejected before the count or length was used.
+    }
+  }
+
+  // The request ID and timestamps, then the participant count with that many ports.
+  private static byte[] header(int participants) {
+    int[] values = new int[8 + 1 + Math.min(participants, VoteTracker.MAX_PARTICIPANTS)];
+    values[8] = participants;
+    for (int i = 9; i < values.length; i++) {
+      values[i] = 10001;
+    }
+    return ints(values);
+  }
+
+  private static byte[] ints(int... values) {
+    byte[] bytes = new byte[values.length * 4];
+    for (int i = 0; i < values.length; i++) {
+      bytes[4 * i] = (byte) (values[i] >>> 24);
+      bytes[4 * i + 1] = (byte) (values[i] >>> 16);
+      bytes[4 * i + 2] = (byte) (values[i] >>> 8);
+      bytes[4 * i + 3] = (byte) values[i];
+    }
+    return bytes;
+  }
+
+  private static byte[] concat(byte[]... parts) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    for (byte[] part : parts) {
+      bytes.write(part, 0, part.length);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void assertOperation(String name, String key, String value,
+      Operation operation) {
+    assertEquals(name, operation.getOperation());
+    assertEquals(key, operation.getKey());
+    if (value == null) {
+      assertNull(operation.getValue());
+    } else {
+      assertEquals(value, operation.getValue());
+    }
+  }
+}
@@ -0,0 +1,143 @@
+package org.server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WriteAheadLogTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path base;
+
+  @Before
+  public void setUp() {
+    this.base = folder.getRoot().toPath().resolve("wal");
+  }
+
+  @Test
+  public void replaysRecordsInOrder() throws Exception {
+    UUID first = UUID.randomUUID();
+    UUID second = UUID.randomUUID();
+    List<Operation> operations = Arrays.asList(new Operation("PUT", "key", "välue 😀"),
+        new Operation("DELETE", "gone", null), new Operation("GET", "read", null));
+
+    WriteAheadLog log = open();
+    log.append(WriteAheadLog.PREPARE, first, operations).get();
+    log.append(WriteAheadLog.COMMIT, first, Collections.emptyList()).get();
+    log.append(WriteAheadLog.ABORT, second, operations.subList(0, 1)).get();
+    log.append(WriteAheadLog.REPAIR, second, operations.subList(0, 2)).get();
+    log.close();
+
+    assertEquals(Arrays.asList(
+        describe(WriteAheadLog.PREPARE, first, operations),
+        describe(WriteAheadLog.COMMIT, first, Collections.emptyList()),
+        describe(WriteAheadLog.ABORT, second, operations.subList(0, 1)),
+        describe(WriteAheadLog.REPAIR, second, operations.subList(0, 2))), replay());
+  }
+
+  @Test
+  public void cutsOffTornTailAndAppendsAfterIt() throws Exception {
+    UUID kept = UUID.randomUUID();
+    UUID appended = UUID.randomUUID();
+    List<Operation> operations = Collections.singletonList(new Operation("PUT", "k", "v"));
+
+    WriteAheadLog log = open();
+    log.append(WriteAheadLog.PREPARE, kept, operations).get();
+    log.append(WriteAheadLog.COMMIT, UUID.randomUUID(), operations).get();
+    log.close();
+    try (RandomAccessFile segment = new RandomAccessFile(segmentFile(0), "rw")) {
+      segment.setLength(segment.length() - 3);
+    }
+
+    assertEquals(Collections.singletonList(describe(WriteAheadLog.PREPARE, kept, operations)),
+        replay());
+    log = open();
+    log.append(WriteAheadLog.ABORT, appended, operations).get();
+    log.close();
+
+    assertEquals(Arrays.asList(describe(WriteAheadLog.PREPARE, kept, operations),
+        describe(WriteAheadLog.ABORT, appended, operations)), replay());
+  }
+
+  @Test
+  public void cutsOffRecordWithBadChecksum() throws Exception {
+    UUID kept = UUID.randomUUID();
+    List<Operation> operations = Collections.singletonList(new Operation("PUT", "k", "v"));
+
+    WriteAheadLog log = open();
+    log.append(WriteAheadLog.PREPARE, kept, operations).get();
+    log.append(WriteAheadLog.COMMIT, kept, operations).get();
+    log.close();
+    try (RandomAccessFile segment = new RandomAccessFile(segmentFile(0), "rw")) {
+      // The value of the second record, its last byte.
+      segment.seek(segment.length() - 1);
+      segment.write('x');
+    }
+
+    assertEquals(Collections.singletonList(describe(WriteAheadLog.PREPARE, kept, operations)),
+        replay());
+  }
+
+  @Test
+  public void rollCarriesRecordsIntoNewSegment() throws Exception {
+    UUID carried = UUID.randomUUID();
+    UUID appended = UUID.randomUUID();
+    List<Operation> operations = Collections.singletonList(new Operation("DELETE", "k", null));
+
+    WriteAheadLog log = open();
+    log.append(WriteAheadLog.PREPARE, UUID.randomUUID(), operations).get();
+    long segment = log.roll(() -> Collections.singletonList(
+        new WriteAheadLog.Record(WriteAheadLog.PREPARE, carried, operations))).get();
+    log.append(WriteAheadLog.COMMIT, appended, operations).get();
+    log.deleteSegmentsBefore(segment);
+    log.close();
+
+    assertEquals(1, segment);
+    assertEquals(Arrays.asList(describe(WriteAheadLog.PREPARE, carried, operations),
+        describe(WriteAheadLog.COMMIT, appended, operations)), replay());
+  }
+
+  private WriteAheadLog open() throws IOException {
+    WriteAheadLog log = new WriteAheadLog(this.base);
+    log.replay(0, (type, requestID, operations) -> { });
+    return log;
+  }
+
+  private List<String> replay() throws IOException {
+    List<String> replayed = new ArrayList<>();
+    WriteAheadLog log = new WriteAheadLog(this.base);
+    log.replay(0, (type, requestID, operations) ->
+        replayed.add(describe(type, requestID, operations)));
+    log.close();
+    return replayed;
+  }
+
+  private File segmentFile(long segment) {
+    return this.base.resolveSibling(String.format("%s.%08d", this.base.getFileName(), segment))
+        .toFile();
+  }
+
+  // Operation has no equals, so records are compared by their contents as text.
+  private static String describe(byte type, UUID requestID, List<Operation> operations) {
+    StringBuilder description = new StringBuilder(type + " " + requestID);
+    for (Operation operation : operations) {
+      description.append(String.format(" %s %s=%s", operation.getOperation(),
+          operation.getKey(), operation.getValue()));
+    }
+    return description.toString();
+  }
+}